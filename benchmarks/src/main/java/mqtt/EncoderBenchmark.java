@@ -0,0 +1,94 @@
+package mqtt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding primitives of {@link MqttEncoder}, which replaced remainingLength, createControlHeader,
+ * createPublishHeader and stringToMQTTFormat on the publish path, and the encoding of a whole PUBLISH packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncoderBenchmark {
+
+    @State(Scope.Thread)
+    public static class RemainingLength {
+        /** Encoded in 1, 2, 3 and 4 bytes. */
+        @Param({ "100", "10000", "1000000", "100000000" })
+        int length;
+    }
+
+    @State(Scope.Thread)
+    public static class Topic {
+        @Param({ "/home/Lyon/sido/dht22/value", "/maison/Orléans/capteur/température" })
+        String topic;
+        int topicLength;
+        ByteBuffer payload;
+
+        @Setup
+        public void setup() {
+            topicLength = MqttEncoder.stringLength(topic);
+            payload = ByteBuffer.wrap(new byte[64]);
+        }
+    }
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+    private int qos = 1;
+    private boolean retain;
+    private boolean dup;
+
+    @Benchmark
+    public ByteBuffer remainingLength(RemainingLength state) {
+        buffer.clear();
+        MqttEncoder.putRemainingLength(buffer, state.length);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte controlHeader() {
+        return MqttEncoder.publishFlags(qos, retain, dup);
+    }
+
+    @Benchmark
+    public ByteBuffer publishHeader(Topic state) {
+        buffer.clear();
+        int remaining = MqttEncoder.publishRemainingLength(state.topicLength, 64, qos);
+        MqttEncoder.putPublishHeader(buffer, state.topic, state.topicLength, remaining, qos, retain, dup, 42);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer mqttString(Topic state) {
+        buffer.clear();
+        buffer.putShort((short) MqttEncoder.stringLength(state.topic));
+        MqttEncoder.putUtf8(buffer, state.topic);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer publishPacket(Topic state) {
+        buffer.clear();
+        OutboundPacket.Publish packet = new OutboundPacket.Publish(state.topic, state.payload, qos, retain, dup,
+                new CompletableFuture<>());
+        packet.packetId = 42;
+        packet.encode(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,80 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the receive loop: splitting a read of {@value #FRAMES} coalesced QoS 0 PUBLISH packets into frames and
+ * handing them to the {@link MqttBinaryClient}, which parses them and routes them to a subscribed handler. The client
+ * is connected to an in-process {@link MqttBroker} only to subscribe; the packets are fed to it directly. Results are
+ * per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameDecoderBenchmark {
+    private static final int FRAMES = 64;
+    private static final String TOPIC = "/home/Lyon/sido/dht22/value";
+
+    @Param({ "16", "256", "4096" })
+    int payloadSize;
+
+    private MqttBroker broker;
+    private MqttBinaryClient client;
+    private ByteBuffer read;
+    private FrameDecoder decoder;
+    private FrameDecoder.FrameHandler handler;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        broker = new MqttBroker(0);
+        client = new MqttBinaryClient("benchmark", "127.0.0.1", broker.port());
+        client.setCleanSession(true);
+        client.setKeepAlive(60);
+        client.connect();
+        client.subscribePayload("/home/Lyon/sido/+/value", (topic, payload) -> blackhole.consume(payload));
+
+        int topicLength = MqttEncoder.stringLength(TOPIC);
+        int remaining = MqttEncoder.publishRemainingLength(topicLength, payloadSize, 0);
+        read = ByteBuffer.allocate(FRAMES * (5 + remaining));
+        for (int i = 0; i < FRAMES; i++) {
+            MqttEncoder.putPublishHeader(read, TOPIC, topicLength, remaining, 0, false, false, 0);
+            read.put(new byte[payloadSize]);
+        }
+        read.flip();
+        decoder = new FrameDecoder(FRAMES * (5 + remaining), MqttEncoder.MAX_LENGTH);
+        handler = client::frameReceived;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.disconnect();
+        broker.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode() throws IOException {
+        decoder.buffer().put(read.duplicate());
+        decoder.decode(handler);
+    }
+}
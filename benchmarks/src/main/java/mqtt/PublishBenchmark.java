@@ -0,0 +1,77 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures end-to-end publishing through a connected {@link MqttBinaryClient} against an in-process
+ * {@link MqttBroker} without subscribers: encoding, batching, the socket and, for QoS 1 and 2, the acknowledgements freeing the in-flight
+ * window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PublishBenchmark {
+
+    @Param({ "0", "1", "2" })
+    int qos;
+
+    @Param({ "false", "true" })
+    boolean nio;
+
+    private MqttBroker broker;
+    private NioEventLoop eventLoop;
+    private MqttBinaryClient client;
+    private final byte[] payload = new byte[64];
+
+    @Setup
+    public void setup() throws IOException {
+        broker = new MqttBroker(0);
+        client = new MqttBinaryClient("benchmark", "127.0.0.1", broker.port());
+        client.setCleanSession(true);
+        client.setKeepAlive(60);
+        client.setMaxInflight(1000);
+        if (nio) {
+            eventLoop = new NioEventLoop();
+            client.setEventLoop(eventLoop);
+        }
+        client.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.disconnect();
+        if (eventLoop != null)
+            eventLoop.close();
+        broker.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        client.publish("/home/Lyon/sido/dht22/value", ByteBuffer.wrap(payload), qos, false);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishContended() {
+        client.publish("/home/Lyon/sido/dht22/value", ByteBuffer.wrap(payload), qos, false);
+    }
+}
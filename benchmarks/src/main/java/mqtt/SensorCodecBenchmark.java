@@ -0,0 +1,79 @@
+package mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the sensor payloads of {@link SensorCodec} against the text payloads they replaced: a reading printed with
+ * String.valueOf and parsed with Double.parseDouble, and an average printed as "Average temperature: X" and parsed
+ * with a regular expression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SensorCodecBenchmark {
+    private static final Pattern AVERAGE = Pattern.compile("Average temperature: (\\d+\\.\\d+)");
+
+    private final double value = 23.456789012345;
+    private byte[] textReading;
+    private byte[] binaryReading;
+    private byte[] textSummary;
+    private byte[] binarySummary;
+
+    @Setup
+    public void setup() {
+        textReading = String.valueOf(value).getBytes();
+        binaryReading = SensorCodec.encodeReading("dht22", System.currentTimeMillis(), value);
+        textSummary = ("Average temperature: " + value).getBytes();
+        binarySummary = SensorCodec.encodeSummary(
+                new SensorCodec.Summary("dht22", System.currentTimeMillis(), 60, value, value, value, value));
+    }
+
+    @Benchmark
+    public byte[] encodeTextReading() {
+        return String.valueOf(value).getBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryReading() {
+        return SensorCodec.encodeReading("dht22", 1700000000000L, value);
+    }
+
+    @Benchmark
+    public double decodeTextReading() {
+        return Double.parseDouble(new String(textReading, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void decodeBinaryReading(Blackhole blackhole) {
+        SensorCodec.decodeReadings(binaryReading, (sensor, timestamp, reading) -> blackhole.consume(reading));
+    }
+
+    @Benchmark
+    public double decodeTextSummary() {
+        Matcher m = AVERAGE.matcher(new String(textSummary, StandardCharsets.UTF_8));
+        return m.find() ? Double.parseDouble(m.group(1)) : 0.0;
+    }
+
+    @Benchmark
+    public double decodeBinarySummary() {
+        return SensorCodec.decodeSummary(binarySummary).mean;
+    }
+}
@@ -0,0 +1,83 @@
+package mqtt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ClientLatencies collects the latencies measured by the clients it is given to with
+ * {@link MqttBinaryClient#setLatencies(ClientLatencies)}; one instance may be shared by many clients to get aggregate
+ * percentiles:
+ * <ul>
+ * <li>publish: from the publish call to the PUBACK (QoS 1) or PUBCOMP (QoS 2)</li>
+ * <li>receive: from the timestamp embedded in the payload to its arrival, for timestamped payloads only</li>
+ * <li>subscribe: from the SUBSCRIBE to the SUBACK</li>
+ * </ul>
+ * A timestamped payload starts with the 8 bytes of {@link #timestamp()} at the time it was published, see
+ * {@link #stamp(ByteBuffer)}. The timestamp counts nanoseconds since the epoch from a clock that is exact within one
+ * JVM, and as accurate as the clock synchronization between hosts.
+ */
+public class ClientLatencies {
+    private static final long EPOCH_OFFSET = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    private final LatencyHistogram publish = new LatencyHistogram();
+    private final LatencyHistogram receive = new LatencyHistogram();
+    private final LatencyHistogram subscribe = new LatencyHistogram();
+    private final boolean timestampedPayloads;
+
+    /**
+     * Constructs a new ClientLatencies.
+     *
+     * @param timestampedPayloads true if every received payload of at least 8 bytes starts with a timestamp
+     */
+    public ClientLatencies(boolean timestampedPayloads) {
+        this.timestampedPayloads = timestampedPayloads;
+    }
+
+    /**
+     * Returns the current time in nanoseconds since the epoch, for embedding in payloads.
+     */
+    public static long timestamp() {
+        return EPOCH_OFFSET + System.nanoTime();
+    }
+
+    /**
+     * Writes the current {@link #timestamp()} in the first 8 bytes of a payload, without changing its position.
+     *
+     * @param payload the payload, with at least 8 bytes remaining
+     * @return the payload
+     */
+    public static ByteBuffer stamp(ByteBuffer payload) {
+        payload.putLong(payload.position(), timestamp());
+        return payload;
+    }
+
+    public LatencyHistogram publish() {
+        return publish;
+    }
+
+    public LatencyHistogram receive() {
+        return receive;
+    }
+
+    public LatencyHistogram subscribe() {
+        return subscribe;
+    }
+
+    /**
+     * Records the latency of a received payload, if payloads are timestamped.
+     *
+     * @param payload the payload, from its position
+     */
+    void received(ByteBuffer payload) {
+        if (timestampedPayloads && payload.remaining() >= 8)
+            receive.record(timestamp() - payload.getLong(payload.position()));
+    }
+
+    /**
+     * Returns the three snapshots, one per line.
+     */
+    @Override
+    public String toString() {
+        return "publish:   " + publish.snapshot() + "\nreceive:   " + receive.snapshot() + "\nsubscribe: "
+                + subscribe.snapshot();
+    }
+}
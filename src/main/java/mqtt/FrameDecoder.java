@@ -0,0 +1,113 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameDecoder splits the bytes received from the broker into MQTT control packets. Bytes are read into one large
+ * buffer and every complete packet it contains is handed to a {@link FrameHandler}, so several small packets coalesced
+ * in one read, as well as a packet split over several reads, are handled without extra system calls. The Remaining
+ * Length is decoded as the variable length integer defined by the specification (1 to 4 bytes).
+ */
+class FrameDecoder {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the packets decoded by a FrameDecoder.
+     */
+    interface FrameHandler {
+        /**
+         * Called for every complete packet.
+         *
+         * @param header the first byte of the fixed header (packet type and flags)
+         * @param body   the variable header and payload, between the buffer's position and limit. Only valid during
+         *               the call: the bytes are overwritten by the next reads.
+         * @throws IOException if the packet cannot be processed
+         */
+        void frameReceived(int header, ByteBuffer body) throws IOException;
+    }
+
+    private final int maxPacketSize;
+    private ByteBuffer buffer;
+
+    /**
+     * Constructs a new FrameDecoder.
+     *
+     * @param bufferSize    the initial size of the read buffer
+     * @param maxPacketSize the size above which a packet is rejected as malformed
+     */
+    FrameDecoder(int bufferSize, int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    FrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE, MqttEncoder.MAX_LENGTH);
+    }
+
+    /**
+     * Returns the buffer to read into, positioned after the bytes not decoded yet.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Decodes every complete packet in the buffer and keeps the trailing partial packet, if any, for the next read.
+     *
+     * @param handler the handler receiving the packets
+     * @throws IOException if a packet is malformed or the handler fails
+     */
+    void decode(FrameHandler handler) throws IOException {
+        buffer.flip();
+        int needed = 0;
+        while (buffer.remaining() >= 2) {
+            int start = buffer.position();
+            int header = Byte.toUnsignedInt(buffer.get(start));
+            int length = 0;
+            int multiplier = 1;
+            int lengthBytes = 0;
+            int encodedByte;
+            do {
+                if (lengthBytes == 4)
+                    throw new IOException("Malformed Remaining Length");
+                if (1 + lengthBytes >= buffer.remaining()) {
+                    // the Remaining Length itself is incomplete
+                    length = -1;
+                    break;
+                }
+                encodedByte = Byte.toUnsignedInt(buffer.get(start + 1 + lengthBytes));
+                length += (encodedByte & 127) * multiplier;
+                multiplier *= 128;
+                lengthBytes++;
+            } while ((encodedByte & 128) != 0);
+            if (length < 0)
+                break;
+            if (length > maxPacketSize)
+                throw new IOException("Packet of " + length + " bytes exceeds the maximum of " + maxPacketSize);
+            int bodyStart = start + 1 + lengthBytes;
+            int frameEnd = bodyStart + length;
+            if (frameEnd > buffer.limit()) {
+                needed = frameEnd - start;
+                break;
+            }
+            int limit = buffer.limit();
+            buffer.limit(frameEnd).position(bodyStart);
+            try {
+                handler.frameReceived(header, buffer);
+            } finally {
+                buffer.limit(limit).position(frameEnd);
+            }
+        }
+        buffer.compact();
+        if (needed > buffer.capacity())
+            grow(needed);
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+}
@@ -0,0 +1,74 @@
+package mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * InFlightStore keeps the outgoing QoS 1 and 2 messages that the broker has not acknowledged yet, so that they can be
+ * sent again when the session is resumed, possibly after a crash. The client records each PUBLISH once it is encoded,
+ * marks QoS 2 messages released when their PUBREC arrives and removes them when their PUBACK or PUBCOMP arrives.
+ * Implementations must be thread-safe.
+ */
+public interface InFlightStore extends Closeable {
+
+    /**
+     * Receives the stored messages, see {@link InFlightStore#forEach(Visitor)}.
+     */
+    interface Visitor {
+        /**
+         * Called for every stored message, in the order they were stored.
+         *
+         * @param packetId the packet identifier of the message
+         * @param packet   the encoded PUBLISH packet, or null if the message was released and only its PUBREL must be
+         *                 sent again; only valid until the method returns
+         * @throws IOException if the message cannot be sent again
+         */
+        void visit(int packetId, ByteBuffer packet) throws IOException;
+    }
+
+    /**
+     * Stores a PUBLISH packet sent but not acknowledged yet, replacing any message with the same packet identifier.
+     *
+     * @param packetId the packet identifier
+     * @param packet   the encoded packet, between its position and limit, which are left unchanged
+     * @throws IOException if the packet cannot be stored
+     */
+    void put(int packetId, ByteBuffer packet) throws IOException;
+
+    /**
+     * Records that the PUBREC of a QoS 2 message arrived: its payload is no longer needed.
+     *
+     * @param packetId the packet identifier
+     * @throws IOException if the store cannot be updated
+     */
+    void release(int packetId) throws IOException;
+
+    /**
+     * Removes an acknowledged message.
+     *
+     * @param packetId the packet identifier
+     * @throws IOException if the store cannot be updated
+     */
+    void remove(int packetId) throws IOException;
+
+    /**
+     * Removes every message, e.g. when a clean session starts.
+     *
+     * @throws IOException if the store cannot be updated
+     */
+    void clear() throws IOException;
+
+    /**
+     * Returns the number of stored messages.
+     */
+    int size();
+
+    /**
+     * Visits every stored message, in the order they were stored.
+     *
+     * @param visitor the visitor
+     * @throws IOException if the store cannot be read or the visitor fails
+     */
+    void forEach(Visitor visitor) throws IOException;
+}
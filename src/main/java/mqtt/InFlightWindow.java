@@ -0,0 +1,278 @@
+package mqtt;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * InFlightWindow bounds the number of QoS 1/2 publishes waiting for an acknowledgement and tracks them by packet
+ * identifier, so that several publishes can be outstanding at the same time. Each packet carries the delivery token
+ * completed when its acknowledgement arrives. Identifiers come from a {@link PacketIdAllocator}, which makes them
+ * unique among outstanding packets. Packets are stored in a table of the smallest power of two not below the window
+ * size, at the slot given by the low bits of their identifier: an identifier whose slot is already taken is set aside
+ * and another one is allocated, so memory follows the window size rather than the 65535 possible identifiers.
+ * <p>
+ * A QoS 2 packet goes through two phases: until its PUBREC arrives the PUBLISH itself may have to be sent again, after
+ * it only the PUBREL. The second phase is recorded in the packet's entry so that the window can tell them apart.
+ */
+class InFlightWindow {
+    public static final int MAX_SIZE = 65535;
+
+    private final int size;
+    private final Semaphore slots;
+    private final PacketIdAllocator packetIds;
+    private volatile AtomicReferenceArray<Entry> table;
+    private final AtomicInteger inFlight;
+
+    /**
+     * Constructs a new InFlightWindow.
+     *
+     * @param size      the maximum number of unacknowledged packets, between 1 and 65535
+     * @param packetIds the allocator shared by every packet of the connection
+     */
+    InFlightWindow(int size, PacketIdAllocator packetIds) {
+        if (size < 1 || size > MAX_SIZE)
+            throw new IllegalArgumentException("Window size must be between 1 and " + MAX_SIZE);
+        this.size = size;
+        this.packetIds = packetIds;
+        slots = new Semaphore(size);
+        table = new AtomicReferenceArray<>(size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1);
+        inFlight = new AtomicInteger(0);
+    }
+
+    /**
+     * Waits for a free slot and records a new packet as in flight.
+     *
+     * @param token the delivery token of the packet
+     * @return the packet identifier assigned to the packet, never used by another packet in flight
+     * @throws InterruptedException if interrupted while the window is full
+     */
+    int acquire(CompletableFuture<Void> token) throws InterruptedException {
+        slots.acquire();
+        return register(token);
+    }
+
+    /**
+     * Takes a free slot if there is one, without blocking. The slot must then be either filled with
+     * {@link #register(CompletableFuture)} or given back with {@link #unreserve()}.
+     *
+     * @return true if a slot was reserved
+     */
+    boolean tryReserve() {
+        return slots.tryAcquire();
+    }
+
+    void unreserve() {
+        slots.release();
+    }
+
+    /**
+     * Records a new packet in a previously reserved slot.
+     *
+     * @param token the delivery token of the packet
+     * @return the packet identifier assigned to the packet
+     */
+    int register(CompletableFuture<Void> token) {
+        AtomicReferenceArray<Entry> table = this.table;
+        int[] skipped = null;
+        int skippedCount = 0;
+        try {
+            while (true) {
+                int packetId = packetIds.acquire();
+                if (packetId == 0) {
+                    slots.release();
+                    throw new IllegalStateException("No packet identifier available");
+                }
+                if (table.compareAndSet(packetId & (table.length() - 1), null, new Entry(packetId, token))) {
+                    inFlight.incrementAndGet();
+                    return packetId;
+                }
+                // the slot holds another packet: keep this identifier aside until a usable one is found
+                if (skipped == null)
+                    skipped = new int[4];
+                else if (skippedCount == skipped.length)
+                    skipped = Arrays.copyOf(skipped, skippedCount * 2);
+                skipped[skippedCount++] = packetId;
+            }
+        } finally {
+            for (int i = 0; i < skippedCount; i++)
+                packetIds.release(skipped[i]);
+        }
+    }
+
+    /**
+     * Records a packet left in flight by a previous connection, keeping its packet identifier. The window must have
+     * been created large enough for every restored packet. Since the identifier cannot be chosen, the table is made
+     * larger when its slot is taken: packets must not be registered or acknowledged at the same time.
+     *
+     * @param packetId the packet identifier of the packet
+     * @param token    the delivery token of the packet
+     */
+    void restore(int packetId, CompletableFuture<Void> token) {
+        if (!packetIds.add(packetId))
+            throw new IllegalStateException("Packet identifier already in use: " + packetId);
+        if (!slots.tryAcquire()) {
+            packetIds.release(packetId);
+            throw new IllegalStateException("No free slot for packet identifier " + packetId);
+        }
+        Entry entry = new Entry(packetId, token);
+        AtomicReferenceArray<Entry> table = this.table;
+        while (!table.compareAndSet(packetId & (table.length() - 1), null, entry))
+            table = grow(table);
+        this.table = table;
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Returns a table twice as large, or more until every entry has a slot of its own.
+     */
+    private static AtomicReferenceArray<Entry> grow(AtomicReferenceArray<Entry> table) {
+        int length = table.length() * 2;
+        while (true) {
+            AtomicReferenceArray<Entry> larger = new AtomicReferenceArray<>(length);
+            boolean placed = true;
+            for (int i = 0; i < table.length() && placed; i++) {
+                Entry entry = table.get(i);
+                if (entry != null)
+                    placed = larger.compareAndSet(entry.packetId & (length - 1), null, entry);
+            }
+            if (placed)
+                return larger;
+            length *= 2;
+        }
+    }
+
+    /**
+     * Releases the slot held by an acknowledged packet and completes its delivery token.
+     *
+     * @param packetId the acknowledged packet identifier
+     * @return false if the packet identifier was not in flight
+     */
+    boolean release(int packetId) {
+        CompletableFuture<Void> token = remove(packetId);
+        if (token == null)
+            return false;
+        token.complete(null);
+        return true;
+    }
+
+    /**
+     * Records that the PUBREC of a QoS 2 packet arrived: the broker now owns the message, and only the PUBREL must be
+     * sent until the PUBCOMP releases the slot.
+     *
+     * @param packetId the packet identifier
+     * @return false if the packet identifier was not in flight
+     */
+    boolean markReleased(int packetId) {
+        Entry entry = get(packetId);
+        if (entry == null)
+            return false;
+        entry.released = true;
+        return true;
+    }
+
+    boolean isInFlight(int packetId) {
+        return get(packetId) != null;
+    }
+
+    /**
+     * Tells whether the PUBREC of an in-flight QoS 2 packet arrived.
+     */
+    boolean isReleased(int packetId) {
+        Entry entry = get(packetId);
+        return entry != null && entry.released;
+    }
+
+    /**
+     * Releases the slot held by a packet that could not be delivered and fails its delivery token.
+     *
+     * @param packetId the packet identifier
+     * @param cause    the reason of the failure
+     */
+    void fail(int packetId, Throwable cause) {
+        CompletableFuture<Void> token = remove(packetId);
+        if (token != null)
+            token.completeExceptionally(cause);
+    }
+
+    private Entry get(int packetId) {
+        AtomicReferenceArray<Entry> table = this.table;
+        Entry entry = table.get(packetId & (table.length() - 1));
+        return entry != null && entry.packetId == packetId ? entry : null;
+    }
+
+    private CompletableFuture<Void> remove(int packetId) {
+        AtomicReferenceArray<Entry> table = this.table;
+        int slot = packetId & (table.length() - 1);
+        Entry entry;
+        do {
+            entry = table.get(slot);
+            if (entry == null || entry.packetId != packetId)
+                return null;
+        } while (!table.compareAndSet(slot, entry, null));
+        if (inFlight.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        packetIds.release(packetId);
+        slots.release();
+        return entry.token;
+    }
+
+    /**
+     * Fails every packet still in flight, e.g. when the connection is closed.
+     *
+     * @param cause the reason of the failure
+     */
+    void failAll(Throwable cause) {
+        AtomicReferenceArray<Entry> table = this.table;
+        for (int i = 0; i < table.length() && inFlight.get() > 0; i++) {
+            Entry entry = table.get(i);
+            if (entry != null)
+                fail(entry.packetId, cause);
+        }
+    }
+
+    /**
+     * Waits until no packet is in flight.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return false if packets were still in flight after the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitEmpty(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (this) {
+            while (inFlight.get() > 0) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        }
+        return true;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static final class Entry {
+        final int packetId;
+        final CompletableFuture<Void> token;
+        volatile boolean released;
+
+        Entry(int packetId, CompletableFuture<Void> token) {
+            this.packetId = packetId;
+            this.token = token;
+        }
+    }
+}
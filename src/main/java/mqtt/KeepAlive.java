@@ -0,0 +1,102 @@
+package mqtt;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * KeepAlive tracks the traffic of one connection on the shared {@link TimerWheel}. A PINGREQ is only sent when nothing
+ * else was written for a whole keep-alive interval, and the connection is reported lost when its PINGRESP does not
+ * arrive within the ping timeout. Each connection has at most one timer scheduled at a time.
+ */
+class KeepAlive {
+    private final TimerWheel wheel;
+    private final long interval;
+    private final long timeout;
+    private final Runnable ping;
+    private final Consumer<IOException> lost;
+
+    private volatile long lastSent;
+    private volatile long pingSent;
+    private volatile boolean stopped;
+    private volatile TimerWheel.Timeout next;
+
+    /**
+     * Constructs a new KeepAlive.
+     *
+     * @param wheel    the timer wheel
+     * @param interval the keep-alive interval in milliseconds, 0 to disable pings
+     * @param timeout  the time to wait for a PINGRESP in milliseconds
+     * @param ping     sends a PINGREQ, called on the timer thread; must not block
+     * @param lost     called once, on the timer thread, when a PINGRESP is missing
+     */
+    KeepAlive(TimerWheel wheel, long interval, long timeout, Runnable ping, Consumer<IOException> lost) {
+        this.wheel = wheel;
+        this.interval = interval;
+        this.timeout = timeout;
+        this.ping = ping;
+        this.lost = lost;
+        lastSent = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts watching the connection.
+     */
+    void start() {
+        if (interval > 0)
+            schedule(interval);
+    }
+
+    /**
+     * Records that bytes were written to the connection.
+     */
+    void sent() {
+        lastSent = System.currentTimeMillis();
+    }
+
+    /**
+     * Records the PINGRESP answering the last PINGREQ.
+     */
+    void pingResponse() {
+        pingSent = 0;
+    }
+
+    /**
+     * Stops watching the connection.
+     */
+    void stop() {
+        stopped = true;
+        TimerWheel.Timeout timeout = next;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    private void schedule(long delay) {
+        if (!stopped)
+            next = wheel.schedule(this::check, delay);
+    }
+
+    private void check() {
+        if (stopped)
+            return;
+        long now = System.currentTimeMillis();
+        long pinged = pingSent;
+        if (pinged != 0) {
+            long waited = now - pinged;
+            if (waited < timeout) {
+                schedule(timeout - waited);
+                return;
+            }
+            stopped = true;
+            lost.accept(new IOException("No PINGRESP within " + timeout + " ms"));
+            return;
+        }
+        long idle = now - lastSent;
+        if (idle < interval) {
+            schedule(interval - idle);
+            return;
+        }
+        pingSent = now;
+        ping.run();
+        schedule(Math.min(interval, timeout));
+    }
+}
@@ -0,0 +1,252 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator opens many {@link MqttBinaryClient} connections, publishes from them at a fixed total rate and reports
+ * the achieved throughput and latency percentiles. Options are given as key=value arguments, for example
+ * {@code mvn exec:java@load-generator -Dexec.args="connections=100 rate=20000 qos=1 size=64"}:
+ * <ul>
+ * <li>host, port: the broker (localhost, 1883)</li>
+ * <li>connections: the number of publishing connections (10)</li>
+ * <li>rate: the total number of messages per second (1000)</li>
+ * <li>duration: the length of the run in seconds (30)</li>
+ * <li>qos: the QoS of the messages (0)</li>
+ * <li>size: the payload size in bytes, at least 8 (64)</li>
+ * <li>topics: the number of topics the messages are spread over (1)</li>
+ * <li>threads: the number of publishing threads (number of processors)</li>
+ * <li>inflight: the in-flight window of each connection (100)</li>
+ * <li>subscribe: true to also measure the end-to-end latency with a subscribing connection (false)</li>
+ * <li>io: blocking, nio or virtual (blocking)</li>
+ * <li>embedded: true to start an in-process {@link MqttBroker} on the port instead of using an external broker
+ * (false)</li>
+ * </ul>
+ * Latencies are measured from the time each message was due rather than the time it was sent, so that a stalled
+ * client shows as latency instead of silently lowering the rate. The acknowledgement latency is the time until the
+ * delivery token completes, which for QoS 0 is only the time until the message is written; the publish to PUBACK
+ * latency recorded by the clients themselves is also shown for QoS 1 and 2.
+ */
+public class LoadGenerator {
+    private static final String TOPIC_PREFIX = "/load/";
+
+    private final Map<String, String> options;
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int rate;
+    private final int duration;
+    private final int qos;
+    private final int size;
+    private final int topics;
+    private final int threads;
+    private final int inflight;
+    private final boolean subscribe;
+    private final String io;
+    private final boolean embedded;
+
+    private final List<MqttBinaryClient> clients = new ArrayList<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LatencyHistogram ackLatencies = new LatencyHistogram();
+    private final ClientLatencies clientLatencies = new ClientLatencies(false);
+    private final ClientLatencies subscriberLatencies = new ClientLatencies(true);
+    private NioEventLoop eventLoop;
+    private ExecutorService receivers;
+    private MqttBroker broker;
+    private MqttBinaryClient subscriber;
+
+    LoadGenerator(String[] args) {
+        options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0)
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        host = option("host", "localhost");
+        port = intOption("port", 1883);
+        connections = positiveOption("connections", 10);
+        rate = positiveOption("rate", 1000);
+        duration = intOption("duration", 30);
+        qos = intOption("qos", 0);
+        size = Math.max(intOption("size", 64), 8);
+        topics = positiveOption("topics", 1);
+        threads = Math.min(positiveOption("threads", Runtime.getRuntime().availableProcessors()), connections);
+        inflight = intOption("inflight", 100);
+        subscribe = Boolean.parseBoolean(option("subscribe", "false"));
+        io = option("io", "blocking");
+        embedded = Boolean.parseBoolean(option("embedded", "false"));
+        if (!options.isEmpty())
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+    }
+
+    private String option(String key, String defaultValue) {
+        String value = options.remove(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intOption(String key, int defaultValue) {
+        return Integer.parseInt(option(key, Integer.toString(defaultValue)));
+    }
+
+    private int positiveOption(String key, int defaultValue) {
+        int value = intOption(key, defaultValue);
+        if (value < 1)
+            throw new IllegalArgumentException(key + " must be at least 1, got " + value);
+        return value;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [host=localhost] [port=1883] [connections=10] [rate=1000]"
+                    + " [duration=30] [qos=0] [size=64] [topics=1] [threads=cpus] [inflight=100]"
+                    + " [subscribe=false] [io=blocking|nio|virtual] [embedded=false]");
+            System.exit(1);
+            return;
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        connect();
+        System.out.printf("%d connections to %s:%d, %d msg/s for %d s, QoS %d, %d bytes, %d topics%n", connections,
+                host, port, rate, duration, qos, size, topics);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread thread = new Thread(() -> publishLoop(first, start, end), "load-" + t);
+            thread.start();
+            publishers.add(thread);
+        }
+        long previousSent = 0, previousAcknowledged = 0, previousReceived = 0;
+        for (int second = 1; System.nanoTime() < end; second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long s = sent.sum(), a = acknowledged.sum(), r = received.sum();
+            System.out.printf("%4d s  sent %8d/s  acknowledged %8d/s  received %8d/s  failed %d%n", second,
+                    s - previousSent, a - previousAcknowledged, r - previousReceived, failed.sum());
+            previousSent = s;
+            previousAcknowledged = a;
+            previousReceived = r;
+        }
+        for (Thread thread : publishers)
+            thread.join();
+        // let the last acknowledgements and deliveries arrive
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (acknowledged.sum() + failed.sum() < sent.sum() && System.nanoTime() < drainDeadline)
+            Thread.sleep(10);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        disconnect();
+        System.out.printf("sent %d, acknowledged %d, failed %d, received %d in %.1f s: %.0f msg/s%n", sent.sum(),
+                acknowledged.sum(), failed.sum(), received.sum(), seconds, acknowledged.sum() / seconds);
+        System.out.println("acknowledgement latency: " + ackLatencies.snapshot());
+        if (qos > 0)
+            System.out.println("publish to PUBACK:       " + clientLatencies.publish().snapshot());
+        if (subscribe)
+            System.out.println("end-to-end latency:      " + subscriberLatencies.receive().snapshot());
+    }
+
+    private void connect() throws IOException {
+        if (embedded)
+            broker = new MqttBroker(port);
+        if (io.equals("nio"))
+            eventLoop = new NioEventLoop();
+        else if (io.equals("virtual"))
+            receivers = MqttBinaryClient.newVirtualThreadExecutor();
+        else if (!io.equals("blocking"))
+            throw new IllegalArgumentException("Unknown io mode " + io);
+        if (subscribe) {
+            subscriber = newClient("load-subscriber");
+            subscriber.setLatencies(subscriberLatencies);
+            subscriber.connect();
+            subscriber.subscribePayload(TOPIC_PREFIX + "#", (topic, payload) -> received.increment());
+        }
+        for (int i = 0; i < connections; i++) {
+            MqttBinaryClient client = newClient("load-" + i);
+            client.setLatencies(clientLatencies);
+            client.connect();
+            if (!client.isConnected())
+                throw new IOException("Connection " + i + " refused");
+            clients.add(client);
+        }
+    }
+
+    private MqttBinaryClient newClient(String id) {
+        MqttBinaryClient client = new MqttBinaryClient(id, host, port);
+        client.setCleanSession(true);
+        client.setKeepAlive(60);
+        client.setMaxInflight(inflight);
+        if (eventLoop != null)
+            client.setEventLoop(eventLoop);
+        if (receivers != null)
+            client.setReceiverExecutor(receivers);
+        return client;
+    }
+
+    /**
+     * Publishes from every threads-th connection, starting at the first one, at rate / threads messages per second.
+     */
+    private void publishLoop(int first, long start, long end) {
+        // at least 1 ns, even above 1e9 messages per second and thread
+        long interval = Math.max(TimeUnit.SECONDS.toNanos(threads) / rate, 1);
+        long due = start + first * interval / threads;
+        int connection = first;
+        int topic = first % topics;
+        while (due < end) {
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            ByteBuffer payload = ByteBuffer.allocate(size);
+            // timestamped with the due time
+            payload.putLong(0, ClientLatencies.timestamp() - (System.nanoTime() - due));
+            long scheduled = due;
+            CompletableFuture<Void> token = clients.get(connection).publishAsync(TOPIC_PREFIX + topic, payload, qos,
+                    false);
+            sent.increment();
+            token.whenComplete((ignored, cause) -> {
+                if (cause != null) {
+                    failed.increment();
+                } else {
+                    ackLatencies.record(System.nanoTime() - scheduled);
+                    acknowledged.increment();
+                }
+            });
+            connection += threads;
+            if (connection >= connections)
+                connection = first;
+            topic = (topic + 1) % topics;
+            due += interval;
+        }
+    }
+
+    private void disconnect() {
+        for (MqttBinaryClient client : clients)
+            client.disconnect();
+        if (subscriber != null)
+            subscriber.disconnect();
+        if (eventLoop != null)
+            eventLoop.close();
+        if (receivers != null)
+            receivers.shutdown();
+        if (broker != null)
+            broker.close();
+    }
+}
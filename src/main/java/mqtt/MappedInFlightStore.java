@@ -0,0 +1,249 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * MappedInFlightStore keeps the in-flight messages in an append-only log mapped in memory, so that they survive a crash
+ * of the process. Storing a message is a copy into the mapping, without any system call; the operating system writes
+ * the pages back in the background, so only a crash of the machine itself can lose recent messages.
+ * <p>
+ * Each record is made of its total length, a type and a packet identifier, followed by the packet for PUBLISH
+ * records. The length is written last and a zero length marks the end of the log, so a record interrupted by a crash
+ * is ignored when the log is read back. When every message is acknowledged the log starts again from the beginning;
+ * when it is full, the live records are copied to a new file which atomically replaces the log.
+ */
+public class MappedInFlightStore implements InFlightStore {
+    private static final Logger log = Logger.getLogger(MappedInFlightStore.class.getName());
+    private static final int DEFAULT_SIZE = 1 << 20;
+    private static final int HEADER = 7;
+    private static final byte PUBLISH = 1, RELEASE = 2, REMOVE = 3;
+
+    private static class Record {
+        int offset, length;
+        boolean released;
+    }
+
+    private final Path file;
+    private final LinkedHashMap<Integer, Record> live;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private int liveBytes;
+
+    /**
+     * Opens the log of a 1 MiB MappedInFlightStore, see {@link #MappedInFlightStore(Path, int)}.
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be opened
+     */
+    public MappedInFlightStore(Path file) throws IOException {
+        this(file, DEFAULT_SIZE);
+    }
+
+    /**
+     * Opens the log, creating it if needed, and reads back the messages it holds. The file grows beyond its initial
+     * size if the in-flight messages do not fit in half of it.
+     *
+     * @param file the log file
+     * @param size the initial size of the file in bytes
+     * @throws IOException if the file cannot be opened
+     */
+    public MappedInFlightStore(Path file, int size) throws IOException {
+        this.file = file;
+        live = new LinkedHashMap<>();
+        map(Math.max(size, 64));
+        recover();
+    }
+
+    private void map(int size) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+
+    private void recover() {
+        position = 0;
+        while (position + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < HEADER || position + length > buffer.capacity())
+                break;
+            byte type = buffer.get(position + 4);
+            int packetId = Short.toUnsignedInt(buffer.getShort(position + 5));
+            if (type == PUBLISH) {
+                Record record = new Record();
+                record.offset = position + HEADER;
+                record.length = length - HEADER;
+                remove(live.remove(packetId));
+                live.put(packetId, record);
+                liveBytes += length;
+            } else if (type == RELEASE) {
+                Record record = live.get(packetId);
+                if (record == null) {
+                    record = new Record();
+                    live.put(packetId, record);
+                    liveBytes += HEADER;
+                }
+                record.released = true;
+            } else if (type == REMOVE) {
+                remove(live.remove(packetId));
+            } else {
+                break;
+            }
+            position += length;
+        }
+        if (!live.isEmpty())
+            log.info("Recovered " + live.size() + " in-flight messages from " + file);
+    }
+
+    private void remove(Record record) {
+        if (record != null)
+            liveBytes -= HEADER + record.length;
+    }
+
+    @Override
+    public synchronized void put(int packetId, ByteBuffer packet) throws IOException {
+        int length = HEADER + packet.remaining();
+        int offset = append(PUBLISH, packetId, length);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(offset + HEADER);
+        dst.put(packet.duplicate());
+        buffer.putInt(offset, length);
+        Record record = new Record();
+        record.offset = offset + HEADER;
+        record.length = length - HEADER;
+        remove(live.remove(packetId));
+        live.put(packetId, record);
+        liveBytes += length;
+    }
+
+    @Override
+    public synchronized void release(int packetId) throws IOException {
+        Record record = live.get(packetId);
+        if (record == null || record.released)
+            return;
+        buffer.putInt(append(RELEASE, packetId, HEADER), HEADER);
+        record.released = true;
+    }
+
+    @Override
+    public synchronized void remove(int packetId) throws IOException {
+        Record record = live.remove(packetId);
+        if (record == null)
+            return;
+        remove(record);
+        if (live.isEmpty()) {
+            // nothing left in flight: start the log again instead of appending
+            buffer.putInt(0, 0);
+            position = 0;
+            liveBytes = 0;
+            return;
+        }
+        buffer.putInt(append(REMOVE, packetId, HEADER), HEADER);
+    }
+
+    @Override
+    public synchronized void clear() {
+        live.clear();
+        buffer.putInt(0, 0);
+        position = 0;
+        liveBytes = 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return live.size();
+    }
+
+    @Override
+    public synchronized void forEach(Visitor visitor) throws IOException {
+        for (Map.Entry<Integer, Record> entry : live.entrySet()) {
+            Record record = entry.getValue();
+            ByteBuffer packet = null;
+            if (!record.released) {
+                packet = buffer.duplicate();
+                packet.limit(record.offset + record.length).position(record.offset);
+            }
+            visitor.visit(entry.getKey(), packet);
+        }
+    }
+
+    /**
+     * Flushes the log to the disk and closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Reserves room for a record and writes its type and packet identifier. The caller writes the rest of the record,
+     * then its length at the returned offset to commit it.
+     */
+    private int append(byte type, int packetId, int length) throws IOException {
+        if (position + length + 4 > buffer.capacity())
+            compact(length);
+        int offset = position;
+        // end of the log, in case a previous log left records after this one
+        if (offset + length + 4 <= buffer.capacity())
+            buffer.putInt(offset + length, 0);
+        buffer.put(offset + 4, type);
+        buffer.putShort(offset + 5, (short) packetId);
+        position += length;
+        return offset;
+    }
+
+    /**
+     * Copies the live records to a new log, twice as large as needed, which then replaces the current one.
+     */
+    private void compact(int needed) throws IOException {
+        int size = buffer.capacity();
+        while (size < 2 * (liveBytes + needed + 4))
+            size *= 2;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        int written = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer copy = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Iterator<Map.Entry<Integer, Record>> entries = live.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Integer, Record> entry = entries.next();
+                Record record = entry.getValue();
+                int length = HEADER + (record.released ? 0 : record.length);
+                copy.put(written + 4, record.released ? RELEASE : PUBLISH);
+                copy.putShort(written + 5, entry.getKey().shortValue());
+                if (!record.released) {
+                    ByteBuffer packet = buffer.duplicate();
+                    packet.limit(record.offset + record.length).position(record.offset);
+                    ByteBuffer dst = copy.duplicate();
+                    dst.position(written + HEADER);
+                    dst.put(packet);
+                    record.offset = written + HEADER;
+                } else {
+                    record.length = 0;
+                }
+                copy.putInt(written, length);
+                written += length;
+            }
+            // the replaced log must be complete on the disk before it becomes the log
+            copy.force();
+        }
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(size);
+        position = written;
+        liveBytes = written;
+    }
+}
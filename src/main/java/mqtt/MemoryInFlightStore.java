@@ -0,0 +1,81 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MemoryInFlightStore keeps the in-flight messages on the heap, which lets a session survive a lost connection but not
+ * the process. This is the default store of {@link MqttBinaryClient}.
+ */
+public class MemoryInFlightStore implements InFlightStore {
+    // a null packet marks a released message
+    private final LinkedHashMap<Integer, byte[]> packets;
+
+    /**
+     * Constructs a new, empty MemoryInFlightStore.
+     */
+    public MemoryInFlightStore() {
+        packets = new LinkedHashMap<>();
+    }
+
+    @Override
+    public void put(int packetId, ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.duplicate().get(bytes);
+        synchronized (packets) {
+            packets.remove(packetId);
+            packets.put(packetId, bytes);
+        }
+    }
+
+    @Override
+    public void release(int packetId) {
+        synchronized (packets) {
+            if (packets.containsKey(packetId))
+                packets.put(packetId, null);
+        }
+    }
+
+    @Override
+    public void remove(int packetId) {
+        synchronized (packets) {
+            packets.remove(packetId);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (packets) {
+            packets.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (packets) {
+            return packets.size();
+        }
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        List<Map.Entry<Integer, byte[]>> entries = new ArrayList<>();
+        synchronized (packets) {
+            for (Map.Entry<Integer, byte[]> entry : packets.entrySet())
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+        for (Map.Entry<Integer, byte[]> entry : entries) {
+            byte[] bytes = entry.getValue();
+            visitor.visit(entry.getKey(), bytes == null ? null : ByteBuffer.wrap(bytes));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,43 +1,94 @@
 package mqtt;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * MqttBinaryClient is a simple MQTT client that connects to a broker, subscribes to topics, and publishes messages.
  */
 public class MqttBinaryClient {
-    private static Random random = new Random();
     private static final Logger log = Logger.getLogger(MqttBinaryClient.class.getName());
+    private static final long DISCONNECT_TIMEOUT = 10000;
+    private static final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mqtt-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final int MAX_LENGTH = 268435455;
     private final int MAX_STRING_LEN = 65535;
     private final byte PROTOCOL_VERSION = 0x4;
 
     private int qos, will_qos;
-    private boolean cleanSession, will, retain, dup;
+    private boolean cleanSession, will, retain;
 
     private String willTopic, willMessage;
 
     private String password, username;
 
     private int keepAlive;
+    private int pingTimeout;
+    private volatile KeepAlive keepAliveMonitor;
+
+    private int maxInflight;
+    private PacketIdAllocator packetIds;
+    private volatile InFlightWindow window;
+    private PacketIdSet receivedQos2;
+    private InFlightStore inFlightStore;
+    private ConcurrentLinkedQueue<OutboundPacket.Publish> waiting;
+    private OfflineQueue offline;
+    private AtomicInteger drainRequests;
 
     private String brokerURI;
     private int port;
     private Socket brokerSocket;
+    private volatile SocketChannel brokerChannel;
+    private NioEventLoop eventLoop;
+    private Executor receiverExecutor;
+    private volatile ClientLatencies latencies;
+    private NioConnection nioConnection;
+    private volatile PacketWriter writer;
+    private int flushThreshold;
+    private int flushDelay;
     private String id;
-    private boolean connected;
+    private volatile boolean connected;
+    private boolean sessionPresent;
+    private List<OutboundPacket> unsent;
+
+    private boolean automaticReconnect;
+    private long minReconnectDelay, maxReconnectDelay;
+    private volatile boolean disconnecting;
+    private AtomicBoolean reconnecting;
+    private Set<String> subscriptions;
 
-    private AtomicBoolean suback, puback;
+    private AtomicBoolean suback;
+    private TopicRouter<MqttPayloadHandler> router;
 
     private enum MessageType {
         CONNECT, CONNACK, PUBLISH, PUBACK, PUBREC, PUBREL, PUBCOMP, SUBSCRIBE, SUBACK, UNSUBSCRIBE, UNSUBACK, PINGREQ,
@@ -57,7 +108,6 @@ public class MqttBinaryClient {
         cleanSession = false;
         will = false;
         retain = false;
-        dup = false;
         password = null;
         username = null;
         brokerSocket = null;
@@ -68,8 +118,22 @@ public class MqttBinaryClient {
         this.port = port;
         this.id = id;
         connected = false;
+        maxInflight = 10;
+        flushThreshold = 8192;
+        flushDelay = 0;
+        packetIds = new PacketIdAllocator();
+        waiting = new ConcurrentLinkedQueue<>();
+        drainRequests = new AtomicInteger(0);
+        receivedQos2 = new PacketIdSet();
+        inFlightStore = new MemoryInFlightStore();
+        unsent = new ArrayList<>();
+        automaticReconnect = false;
+        minReconnectDelay = 1000;
+        maxReconnectDelay = 60000;
+        reconnecting = new AtomicBoolean(false);
+        subscriptions = Collections.synchronizedSet(new LinkedHashSet<>());
         suback = new AtomicBoolean(false);
-        puback = new AtomicBoolean(false);
+        router = new TopicRouter<>();
     }
 
     public static void main(String[] args) {
@@ -80,13 +144,15 @@ public class MqttBinaryClient {
         mqttClient.setCleanSession(true);
         mqttClient.setKeepAlive(60);
         mqttClient.setQos(1);
+        mqttClient.setAutomaticReconnect(true);
         try {
             mqttClient.connect();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        mqttClient.subscribe("/labs/new-topic");
+        mqttClient.subscribe("/labs/new-topic",
+                (topic, message) -> log.info("Received message on topic " + topic + " : " + message));
         log.info("Subscribed to topic /labs/new-topic");
         mqttClient.publish("/labs/bin", "I see skies of blue");
         mqttClient.publish("/labs/bin", "And clouds of white");
@@ -99,7 +165,15 @@ public class MqttBinaryClient {
      * @throws UnknownHostException if the broker URI is unknown
      * @throws IOException          if an I/O error occurs
      */
-    public void connect() throws UnknownHostException, IOException {
+    public synchronized void connect() throws UnknownHostException, IOException {
+        disconnecting = false;
+        reconnecting.set(false);
+        if (offline != null)
+            offline.reopen();
+        doConnect();
+    }
+
+    private synchronized void doConnect() throws IOException {
         log.info("connecting to " + brokerURI + ":" + port);
         int payload_length = id.length() + 2;
         if (will)
@@ -111,28 +185,159 @@ public class MqttBinaryClient {
         byte[] header = createConnectHeader(payload_length);
 
         ByteBuffer packet = ByteBuffer.allocate(header.length + payload_length);
+        packet.put(header).put(stringToMQTTFormat(id));
+        if (will)
+            packet.put(stringToMQTTFormat(willTopic)).put(stringToMQTTFormat(willMessage));
         if (username != null)
             packet.put(stringToMQTTFormat(username));
         if (password != null)
             packet.put(stringToMQTTFormat(password));
         byte[] message = packet.array();
         logMessageBytes(message);
-        brokerSocket = new Socket(brokerURI, port);
-        brokerSocket.getOutputStream().write(packet.array());
-        log.info(packet.array().toString());
-        byte[] connack = new byte[4];
-        int connack_len = brokerSocket.getInputStream().read(connack);
-        log.info("Connack length : " + connack_len);
-        connected = connack_decode(connack);
-        if (connected) {
-            new Thread(new Recevier()).start();
-            new Thread(new keepAliveTask()).start();
+        if (writer != null)
+            unsent.addAll(writer.unsent());
+        nioConnection = null;
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(brokerURI, port));
+        brokerChannel = channel;
+        brokerSocket = channel.socket();
+        KeepAlive monitor = new KeepAlive(TimerWheel.shared(), keepAlive * 1000L,
+                (pingTimeout > 0 ? pingTimeout : keepAlive) * 1000L, this::sendPing,
+                cause -> connectionClosed(channel, cause));
+        keepAliveMonitor = monitor;
+        writer = new PacketWriter(packets -> {
+            transportWrite(channel, packets);
+            monitor.sent();
+        }, cause -> connectionClosed(channel, cause), flushThreshold, flushDelay);
+        write(new OutboundPacket.Encoded(packet.array()), true);
+        ByteBuffer connack = ByteBuffer.allocate(4);
+        while (connack.hasRemaining()) {
+            if (brokerChannel.read(connack) < 0)
+                throw new IOException("Connection closed by broker before CONNACK");
+        }
+        log.info("Connack length : " + connack.position());
+        if (connack_decode(connack.array())) {
+            if (cleanSession) {
+                receivedQos2.clear();
+                inFlightStore.clear();
+                if (window != null)
+                    window.failAll(new IOException("Previous session discarded"));
+            }
+            // kept while messages are in flight, so that their delivery tokens survive a reconnection
+            if (window == null || window.inFlight() == 0)
+                window = new InFlightWindow(Math.max(maxInflight, inFlightStore.size()), packetIds);
+            // before publishing is allowed, so that new messages do not take the identifiers of the restored ones and
+            // are sent after them
+            int redelivered = redeliver();
+            connected = true;
+            if (eventLoop != null) {
+                nioConnection = new NioConnection(eventLoop, channel, this::frameReceived,
+                        cause -> connectionClosed(channel, cause));
+            } else {
+                Recevier receiver = new Recevier(channel);
+                if (receiverExecutor != null)
+                    receiverExecutor.execute(receiver);
+                else
+                    new Thread(receiver).start();
+            }
+            // only once the broker's acknowledgements are read, or a backlog larger than the socket buffers of both
+            // sides deadlocks the two writers
+            if (redelivered > 0) {
+                log.info("Redelivering " + redelivered + " in-flight messages");
+                writer.flush();
+            }
+            monitor.start();
+            if (!sessionPresent)
+                resubscribe();
+            drainWaiting();
+        } else {
+            channel.close();
+        }
+
+    }
+
+    /**
+     * Subscribes again to every topic filter, when the broker did not keep the session.
+     */
+    private void resubscribe() {
+        List<String> filters;
+        synchronized (subscriptions) {
+            filters = new ArrayList<>(subscriptions);
         }
+        if (!filters.isEmpty())
+            subscribe(filters);
+    }
 
+    /**
+     * Schedules a reconnection attempt after an exponential backoff: the delay doubles after each failed attempt, up
+     * to maxReconnectDelay, and is then randomized between half and all of it so that the clients of a restarted
+     * broker do not all reconnect at the same time.
+     */
+    private void scheduleReconnect(int attempt) {
+        long delay = Math.min(maxReconnectDelay, minReconnectDelay << Math.min(attempt, 20));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        log.info("Reconnecting in " + delay + " ms");
+        reconnector.schedule(() -> reconnect(attempt), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(int attempt) {
+        synchronized (this) {
+            if (disconnecting) {
+                reconnecting.set(false);
+                return;
+            }
+            try {
+                doConnect();
+            } catch (IOException e) {
+                log.warning("Error reconnecting to broker: " + e.getMessage());
+            }
+            if (isConnected()) {
+                reconnecting.set(false);
+                return;
+            }
+        }
+        scheduleReconnect(attempt + 1);
+    }
+
+    /**
+     * Sends again the messages of the in-flight store, with their original packet identifiers: the PUBLISH with the
+     * DUP flag, or the PUBREL of the QoS 2 messages already received by the broker. The packets are only queued to
+     * the packet writer, and written by the next flush.
+     *
+     * @return the number of packets queued
+     */
+    private int redeliver() throws IOException {
+        int[] count = { 0 };
+        inFlightStore.forEach((packetId, packet) -> {
+            if (!window.isInFlight(packetId))
+                window.restore(packetId, new CompletableFuture<>());
+            if (packet == null) {
+                window.markReleased(packetId);
+                writer.enqueue(new OutboundPacket.Ack(MqttEncoder.PUBREL, packetId));
+            } else {
+                byte[] bytes = new byte[packet.remaining()];
+                packet.get(bytes);
+                bytes[0] |= 0x08;
+                writer.enqueue(new OutboundPacket.Encoded(bytes));
+            }
+            count[0]++;
+        });
+        // queued but never encoded on the previous connection, unless discarded with the session
+        for (OutboundPacket packet : unsent) {
+            if (!(packet instanceof OutboundPacket.Publish))
+                continue;
+            OutboundPacket.Publish publish = (OutboundPacket.Publish) packet;
+            if (publish.qos == 0 || window.isInFlight(publish.packetId)) {
+                writer.enqueue(publish);
+                count[0]++;
+            }
+        }
+        unsent.clear();
+        return count[0];
     }
 
     private boolean connack_decode(byte[] connack) {
-        log.info("Session Present : " + (connack[2] == 1));
+        sessionPresent = connack[2] == 1;
+        log.info("Session Present : " + sessionPresent);
         switch (connack[3]) {
             case 0x0:
                 log.info("Connection Accepted");
@@ -160,50 +365,429 @@ public class MqttBinaryClient {
 
     }
 
-    public void disconnect() {
-        if (brokerSocket.isConnected()) {
+    public synchronized void disconnect() {
+        disconnecting = true;
+        IOException disconnected = new IOException("Disconnected from broker");
+        // also wakes up the publishers blocked on a full offline buffer
+        if (offline != null)
+            offline.close(disconnected);
+        if (brokerSocket == null)
+            return;
+        // already closed if the connection was lost and a reconnection is pending
+        if (!brokerSocket.isClosed()) {
             try {
                 log.info("Disconnecting from broker");
-                brokerSocket.getOutputStream().write(createControlHeader(MessageType.DISCONNECT));
+                if (connected)
+                    awaitAcknowledgements();
+                connected = false;
+                keepAliveMonitor.stop();
+                write(OutboundPacket.Encoded.DISCONNECT, true);
+                writer.awaitDrained(1000);
+                if (nioConnection != null)
+                    nioConnection.close(null);
                 brokerSocket.close();
             } catch (IOException e) {
                 log.warning("Error disconnecting from broker: " + e.getMessage());
             }
         }
+        failPending(disconnected);
+    }
+
+    /**
+     * Waits a while for the acknowledgements of the messages in flight: publish() returns as soon as a message is in
+     * flight, and a publish followed by a disconnection must not lose its acknowledgement.
+     */
+    private void awaitAcknowledgements() {
+        try {
+            if (!window.awaitEmpty(DISCONNECT_TIMEOUT))
+                log.warning(window.inFlight() + " messages still unacknowledged after " + DISCONNECT_TIMEOUT
+                        + " ms, disconnecting anyway");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warning("Interrupted waiting for acknowledgements, disconnecting anyway");
+        }
+    }
+
+    /**
+     * Fails the delivery token of every publish queued or waiting for an acknowledgement.
+     */
+    private void failPending(IOException cause) {
+        OutboundPacket.Publish queued;
+        while ((queued = waiting.poll()) != null)
+            queued.token.completeExceptionally(cause);
+        synchronized (this) {
+            if (writer != null)
+                unsent.addAll(writer.unsent());
+            for (OutboundPacket packet : unsent) {
+                if (packet instanceof OutboundPacket.Publish)
+                    ((OutboundPacket.Publish) packet).token.completeExceptionally(cause);
+            }
+            unsent.clear();
+        }
+        if (window != null)
+            window.failAll(cause);
     }
 
+    /**
+     * Publishes a message with the client's QoS and retain flag, see {@link #publish(String, String, int, boolean)}.
+     *
+     * @param topic   the topic to publish to
+     * @param message the message to publish
+     */
     public void publish(String topic, String message) {
-        if (!brokerSocket.isConnected()) {
+        publish(topic, message, qos, retain);
+    }
+
+    /**
+     * Publishes a message without waiting for its acknowledgement. With QoS 1 or 2, the call only blocks while
+     * maxInflight publishes are already waiting for their PUBACK/PUBCOMP. Any number of threads may publish through
+     * the same client concurrently.
+     *
+     * @param topic   the topic to publish to
+     * @param message the message to publish
+     * @param qos     the QoS level of this message
+     * @param retain  the retain flag of this message
+     */
+    public void publish(String topic, String message, int qos, boolean retain) {
+        publish(new OutboundPacket.Publish(topic, message, qos, retain, false, new CompletableFuture<>()));
+    }
+
+    /**
+     * Publishes a binary payload with the client's QoS and retain flag, see
+     * {@link #publish(String, ByteBuffer, int, boolean)}.
+     *
+     * @param topic   the topic to publish to
+     * @param payload the payload to publish
+     */
+    public void publish(String topic, byte[] payload) {
+        publish(topic, ByteBuffer.wrap(payload), qos, retain);
+    }
+
+    /**
+     * Publishes a binary payload like {@link #publish(String, String, int, boolean)}. The bytes between the payload's
+     * position and limit are written to the socket without being copied or converted, so they must not be modified
+     * until the message has been acknowledged. With QoS 0 the message may still be queued when the method returns: use
+     * {@link #publishAsync(String, ByteBuffer, int, boolean)} to know when the payload can be reused. The payload's
+     * position is not changed.
+     *
+     * @param topic   the topic to publish to
+     * @param payload the payload to publish
+     * @param qos     the QoS level of this message
+     * @param retain  the retain flag of this message
+     */
+    public void publish(String topic, ByteBuffer payload, int qos, boolean retain) {
+        publish(new OutboundPacket.Publish(topic, payload, qos, retain, false, new CompletableFuture<>()));
+    }
+
+    private void publish(OutboundPacket.Publish packet) {
+        timePublish(packet);
+        if (offline != null && (!isConnected() || !offline.isEmpty())) {
+            bufferOffline(packet);
+            return;
+        }
+        if (!isConnected()) {
             log.warning("Not connected to broker");
             return;
         }
-        synchronized (puback) {
-            puback.set(false);
+        if (packet.qos > 0) {
+            try {
+                packet.packetId = window.acquire(packet.token);
+            } catch (InterruptedException e) {
+                log.warning("Error waiting for an in-flight slot: " + e.getMessage());
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
-        log.info("Publishing message to topic " + topic + " : " + message);
-        int payload_length = message.length() + 2;
-        byte[] header = createPublishHeader(payload_length, topic);
-        ByteBuffer packet = ByteBuffer.allocate(header.length + payload_length);
-        packet.put(header).put(message.getBytes());
-
-        byte[] publish = packet.array();
-        logMessageBytes(publish);
         try {
-            brokerSocket.getOutputStream().write(publish);
+            writePublish(packet, false);
         } catch (IOException e) {
             log.warning("Error publishing message: " + e.getMessage());
+            window.fail(packet.packetId, e);
+        }
+    }
+
+    /**
+     * Publishes a message with the client's QoS and retain flag, see
+     * {@link #publishAsync(String, String, int, boolean)}.
+     *
+     * @param topic   the topic to publish to
+     * @param message the message to publish
+     * @return the delivery token of the message
+     */
+    public CompletableFuture<Void> publishAsync(String topic, String message) {
+        return publishAsync(topic, message, qos, retain);
+    }
+
+    /**
+     * Publishes a message without blocking the calling thread. The returned delivery token is completed by the
+     * receiver thread when the PUBACK (QoS 1) or PUBCOMP (QoS 2) arrives, or by the writing thread once the packet is
+     * encoded into the write buffer for QoS 0. When the in-flight window is full the message is queued and sent as
+     * soon as an acknowledgement frees a slot. While disconnected the token fails, unless an offline buffer is set.
+     * Dependent actions run on these threads and must not block.
+     *
+     * @param topic   the topic to publish to
+     * @param message the message to publish
+     * @param qos     the QoS level of this message
+     * @param retain  the retain flag of this message
+     * @return the delivery token of the message
+     */
+    public CompletableFuture<Void> publishAsync(String topic, String message, int qos, boolean retain) {
+        return publishAsync(new OutboundPacket.Publish(topic, message, qos, retain, false, new CompletableFuture<>()));
+    }
+
+    /**
+     * Publishes a binary payload with the client's QoS and retain flag, see
+     * {@link #publishAsync(String, ByteBuffer, int, boolean)}.
+     *
+     * @param topic   the topic to publish to
+     * @param payload the payload to publish
+     * @return the delivery token of the message
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload) {
+        return publishAsync(topic, ByteBuffer.wrap(payload), qos, retain);
+    }
+
+    /**
+     * Publishes a binary payload like {@link #publishAsync(String, String, int, boolean)}. The payload is not copied:
+     * it must not be modified before the delivery token completes.
+     *
+     * @param topic   the topic to publish to
+     * @param payload the payload to publish, between its position and limit
+     * @param qos     the QoS level of this message
+     * @param retain  the retain flag of this message
+     * @return the delivery token of the message
+     */
+    public CompletableFuture<Void> publishAsync(String topic, ByteBuffer payload, int qos, boolean retain) {
+        return publishAsync(new OutboundPacket.Publish(topic, payload, qos, retain, false, new CompletableFuture<>()));
+    }
+
+    private CompletableFuture<Void> publishAsync(OutboundPacket.Publish packet) {
+        timePublish(packet);
+        CompletableFuture<Void> token = packet.token;
+        if (offline != null && (!isConnected() || !offline.isEmpty())) {
+            bufferOffline(packet);
+            return token;
+        }
+        if (!isConnected()) {
+            token.completeExceptionally(new IOException("Not connected to broker"));
+            return token;
         }
-        synchronized (puback) {
-            while (!puback.get()) {
+        if (packet.qos == 0) {
+            try {
+                writePublish(packet, false);
+            } catch (IOException e) {
+                log.warning("Error publishing message: " + e.getMessage());
+                token.completeExceptionally(e);
+            }
+            return token;
+        }
+        waiting.offer(packet);
+        drainWaiting();
+        return token;
+    }
+
+    private void timePublish(OutboundPacket.Publish packet) {
+        ClientLatencies latencies = this.latencies;
+        if (latencies != null && packet.qos > 0) {
+            long start = System.nanoTime();
+            packet.token.thenRun(() -> latencies.publish().record(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Keeps a message published while disconnected, or while older offline messages are still being sent so that
+     * messages are sent in order.
+     */
+    private void bufferOffline(OutboundPacket.Publish packet) {
+        try {
+            if (!offline.offer(packet))
+                packet.token.completeExceptionally(new IOException("Offline buffer full"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            packet.token.completeExceptionally(new IOException("Interrupted waiting for the offline buffer"));
+        } catch (IOException e) {
+            packet.token.completeExceptionally(e);
+        }
+        // the connection may have come back, and drained the buffer, before the message was added
+        if (isConnected())
+            drainWaiting();
+    }
+
+    /**
+     * Sends queued asynchronous publishes, then the offline buffer, while the in-flight window has free slots. QoS 0
+     * messages of the offline buffer do not need a slot and are sent as they are met. The messages are queued to the
+     * packet writer as one batch, so that a backlog sent on reconnection is coalesced into few socket writes whatever
+     * the flush policy.
+     */
+    private void drainWaiting() {
+        // one thread drains at a time, so that messages are written in the order they are polled
+        if (drainRequests.getAndIncrement() != 0)
+            return;
+        int missed = 1;
+        do {
+            boolean batched = false;
+            while ((!waiting.isEmpty() || offline != null && !offline.isEmpty()) && window.tryReserve()) {
+                batched = true;
+                boolean fromOffline = false;
+                OutboundPacket.Publish queued = waiting.poll();
+                if (queued == null && offline != null) {
+                    queued = pollOffline();
+                    fromOffline = queued != null;
+                }
+                if (queued == null) {
+                    window.unreserve();
+                    break;
+                }
+                queued.packetId = window.register(queued.token);
                 try {
-                    puback.wait();
-                } catch (InterruptedException e) {
-                    log.warning("Error waiting for Puback: " + e.getMessage());
+                    writePublish(queued, true);
+                } catch (IOException e) {
+                    log.warning("Error publishing message: " + e.getMessage());
+                    window.fail(queued.packetId, e);
+                } finally {
+                    if (fromOffline)
+                        offline.sent();
+                }
+            }
+            if (batched) {
+                try {
+                    writer.writeQueued();
+                } catch (IOException e) {
+                    // the batch stays queued, to be sent again or failed with the connection
+                    log.warning("Error publishing messages: " + e.getMessage());
                 }
             }
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private OutboundPacket.Publish pollOffline() {
+        OutboundPacket.Publish packet;
+        while ((packet = offline.poll()) != null && packet.qos == 0) {
+            try {
+                writePublish(packet, true);
+            } catch (IOException e) {
+                log.warning("Error publishing message: " + e.getMessage());
+                packet.token.completeExceptionally(e);
+            } finally {
+                offline.sent();
+            }
+        }
+        return packet;
+    }
+
+    /**
+     * Queues a PUBLISH for the packet writer.
+     *
+     * @param packet the packet
+     * @param batch  true to leave it queued until {@link PacketWriter#writeQueued()}
+     * @throws IOException if the connection already failed
+     */
+    private void writePublish(OutboundPacket.Publish packet, boolean batch) throws IOException {
+        if (packet.qos > 0)
+            packet.store = inFlightStore;
+        if (log.isLoggable(Level.FINE))
+            log.fine("Publishing message to topic " + packet.topic + " : " + packet.describePayload());
+        if (batch)
+            writer.enqueue(packet);
+        else
+            write(packet, false);
+    }
+
+    /**
+     * Queues a packet for the packet writer, which may coalesce it with other packets according to the flush policy.
+     *
+     * @param packet the packet
+     * @param flush  true to send the packet, and every packet queued before it, immediately
+     * @throws IOException if the connection already failed
+     */
+    private void write(OutboundPacket packet, boolean flush) throws IOException {
+        writer.write(packet, flush);
+    }
+
+    /**
+     * Sends the packets buffered by the flush policy now.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        if (writer != null)
+            writer.flush();
+    }
+
+    private void transportWrite(SocketChannel channel, ByteBuffer packet) throws IOException {
+        NioConnection connection = nioConnection;
+        if (connection != null && connection.channel() == channel) {
+            connection.write(packet);
+            return;
         }
+        while (packet.hasRemaining())
+            channel.write(packet);
+    }
+
+    private void sendPing() {
+        try {
+            // runs on the timer wheel shared by every connection, which must not wait for this socket
+            writer.writeLater(OutboundPacket.Encoded.PINGREQ, true);
+        } catch (IOException e) {
+            log.warning("Error sending ping request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called once per connection when it is lost, or closed by {@link #disconnect()} with a null cause. A lost
+     * connection is reestablished if automatic reconnection is enabled; otherwise the pending messages fail.
+     */
+    private void connectionClosed(SocketChannel channel, IOException cause) {
+        if (channel != brokerChannel)
+            return;
+        if (isConnected() && cause != null)
+            log.warning("Connection lost: " + cause.getMessage());
+        connected = false;
+        keepAliveMonitor.stop();
+        synchronized (suback) {
+            suback.notifyAll();
+        }
+        if (cause == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warning("Error closing connection: " + e.getMessage());
+        }
+        if (automaticReconnect && !disconnecting) {
+            if (reconnecting.compareAndSet(false, true))
+                scheduleReconnect(0);
+        } else {
+            failPending(cause);
+        }
+    }
+
+    /**
+     * Subscribes to a topic filter and waits for the broker's acknowledgement. Messages published on a topic matching
+     * the filter are passed to the handler; when several filters match, every handler is called.
+     *
+     * @param filter  the topic filter, possibly containing the wildcards + (one level) and # (any remaining levels)
+     * @param handler the handler of the matching messages
+     * @throws IllegalArgumentException if the filter is not a valid topic filter
+     */
+    public void subscribe(String filter, MqttMessageHandler handler) {
+        subscribePayload(filter,
+                (topic, payload) -> handler.messageArrived(topic, decodeString(payload, payload.remaining())));
     }
 
+    /**
+     * Subscribes to a topic filter like {@link #subscribe(String, MqttMessageHandler)}, passing the payloads to the
+     * handler as read-only views of the read buffer instead of strings, without copying them.
+     *
+     * @param filter  the topic filter, possibly containing the wildcards + and #
+     * @param handler the handler of the matching payloads
+     * @throws IllegalArgumentException if the filter is not a valid topic filter
+     */
+    public void subscribePayload(String filter, MqttPayloadHandler handler) {
+        router.add(filter, handler);
+        subscribe(filter);
+    }
 
     private void subscribe(String topic) {
         List<String> topics = new LinkedList<>();
@@ -212,6 +796,7 @@ public class MqttBinaryClient {
     }
 
     private void subscribe(List<String> topics) {
+        subscriptions.addAll(topics);
         synchronized (suback) {
             suback.set(false);
         }
@@ -221,25 +806,33 @@ public class MqttBinaryClient {
         final int[] tmp = { 0 };
         topics.forEach(t -> tmp[0] += t.length() + 3);
         int payload_length = tmp[0];
-        byte[] header = createSubscribeHeader(payload_length);
+        int packetId = packetIds.acquire();
+        if (packetId == 0)
+            throw new IllegalStateException("No packet identifier available");
+        byte[] header = createSubscribeHeader(payload_length, packetId);
         ByteBuffer packet = ByteBuffer.allocate(payload_length + header.length).put(header);
         topics.forEach(t -> packet.put(stringToMQTTFormat(t)).put((byte) qos));
 
-        byte[] message = packet.array();
-        logMessageBytes(message);
+        logMessageBytes(packet.array());
+        long start = System.nanoTime();
         try {
-            brokerSocket.getOutputStream().write(message);
+            write(new OutboundPacket.Encoded(packet.array()), true);
         } catch (IOException e) {
             log.warning("Error publishing message: " + e.getMessage());
         }
         synchronized (suback) {
-            while (!suback.get()) {
+            // the filters are subscribed again after a reconnection if the connection is lost meanwhile
+            while (!suback.get() && isConnected()) {
                 try {
                     suback.wait();
                 } catch (InterruptedException e) {
                     log.warning("Error waiting for Suback: " + e.getMessage());
                 }
             }
+            if (!suback.get())
+                packetIds.release(packetId);
+            else if (latencies != null)
+                latencies.subscribe().record(System.nanoTime() - start);
         }
     }
 
@@ -290,64 +883,28 @@ public class MqttBinaryClient {
     }
 
     private byte createControlHeader(MessageType messageType) {
-        BitSet bitSet = new BitSet(8);
         switch (messageType) {
             case CONNECT:// 0001
-                bitSet.set(4);
-                break;
-            case PUBLISH:// 0011
-                bitSet.set(5);
-                bitSet.set(4);
-                bitSet.set(3, dup);
-                switch (qos) {
-                    case 0:
-                        break;
-                    case 1:
-                        bitSet.set(2);
-                        break;
-                    case 2:
-                        bitSet.set(1);
-                        break;
-                }
-                bitSet.set(0, retain);
-                break;
+                return 0x10;
             case PUBACK:// 0100
-                bitSet.set(6);
-                break;
+                return MqttEncoder.PUBACK;
             case PUBREC:// 0101
-                bitSet.set(6);
-                bitSet.set(4);
-                break;
+                return MqttEncoder.PUBREC;
             case PUBREL:// 0110
-                bitSet.set(6);
-                bitSet.set(5);
-                bitSet.set(1);
-
-                break;
+                return MqttEncoder.PUBREL;
             case PUBCOMP:// 0111
-                bitSet.set(6);
-                bitSet.set(5);
-                bitSet.set(4);
-                break;
+                return MqttEncoder.PUBCOMP;
             case SUBSCRIBE:// 1000
-                bitSet.set(7);
-                bitSet.set(1);
-                break;
+                return (byte) 0x82;
             case UNSUBSCRIBE:// 1010
-                bitSet.set(7);
-                bitSet.set(5);
-                break;
+                return (byte) 0xA2;
             case PINGREQ:// 1100
-                bitSet.set(7);
-                bitSet.set(6);
-                break;
+                return MqttEncoder.PINGREQ;
             case DISCONNECT:// 1110
-                bitSet.set(7);
-                bitSet.set(6);
-                bitSet.set(5);
-                break;
+                return MqttEncoder.DISCONNECT;
+            default:
+                return 0;
         }
-        return bitSet.toByteArray()[0];
     }
 
     private byte[] createConnectHeader(int payload_length) {
@@ -382,99 +939,179 @@ public class MqttBinaryClient {
         connect_flags.set(6, password != null);
         connect_flags.set(7, username != null);
 
-        buffer.put(connect_flags.toByteArray());
+        // toByteArray() is empty when no flag is set
+        byte[] flags = connect_flags.toByteArray();
+        buffer.put(flags.length > 0 ? flags[0] : 0);
         byte[] keepAlive_buf = ByteBuffer.allocate(4).putInt(keepAlive).array();
         buffer.put(keepAlive_buf[2]).put(keepAlive_buf[3]);
         return buffer.array();
 
     }
 
-    private byte[] createPublishHeader(int payload_length, String topic) {
-        ArrayList<Byte> varLength = remainingLength(payload_length + topic.length() + 2);
-        log.fine("Payload_length = " + payload_length);
-        ByteBuffer buffer = ByteBuffer.allocate(2 + varLength.size() + topic.length() + 3);
-        log.fine("Buffer size : " + (topic.length() + varLength.size() + 2));
-        buffer.put(createControlHeader(MessageType.PUBLISH));
-        varLength.forEach(b -> buffer.put(b));
-        buffer.put(stringToMQTTFormat(topic));
-        byte[] message_id = ByteBuffer.allocate(4).putInt(random.nextInt()).array();
-        log.fine("Message id : " + Byte.toUnsignedInt(message_id[2]) + "\t" + Byte.toUnsignedInt(message_id[3]));
-        buffer.put(message_id[2]).put(message_id[3]);
-        return buffer.array();
-    }
-
-    private byte[] createSubscribeHeader(int payload_length) {
+    private byte[] createSubscribeHeader(int payload_length, int packetId) {
         ArrayList<Byte> varLength = remainingLength(payload_length + 2);
 
         ByteBuffer buffer = ByteBuffer.allocate(varLength.size() + 3)
                 .put(createControlHeader(MessageType.SUBSCRIBE));
         varLength.forEach(b -> buffer.put(b));
-        buffer.put((byte) random.nextInt(255)).put((byte) random.nextInt(255));
+        buffer.put((byte) (packetId >> 8)).put((byte) packetId);
         return buffer.array();
     }
 
-    public byte[] receive_publish(byte[] message) {
-        int topic_len = message[0] << 8 | message[1];
-        if (topic_len == 0)
-            return null;
-        byte[] topic_raw = new byte[topic_len];
-        System.arraycopy(message, 2, topic_raw, 0, topic_len);
-        StringBuilder topic = new StringBuilder();
-        for (byte b : topic_raw) {
-            topic.append((char) b);
+    /**
+     * Processes a PUBLISH packet.
+     *
+     * @param flags   the flags of the fixed header
+     * @param message the variable header and payload
+     * @return the packet identifier, or 0 for a QoS 0 message
+     */
+    public int receive_publish(int flags, ByteBuffer message) {
+        int qos = (flags >> 1) & 3;
+        int topic_len = Short.toUnsignedInt(message.getShort());
+        String topic = decodeString(message, topic_len);
+        int packetId = qos > 0 ? Short.toUnsignedInt(message.getShort()) : 0;
+        if (qos == 2 && !receivedQos2.add(packetId)) {
+            // already delivered, the broker resent it because our PUBREC was lost
+            if (log.isLoggable(Level.FINE))
+                log.fine("Duplicate message ID: " + packetId);
+            return packetId;
         }
-        byte[] message_id = new byte[2];
-        System.arraycopy(message, topic_len + 2, message_id, 0, 2);
-        StringBuilder content = new StringBuilder();
-        for (int i = topic_len + message_id.length; i < message.length; i++) {
-            content.append((char) message[i]);
+        ByteBuffer payload = message.slice().asReadOnlyBuffer();
+        ClientLatencies latencies = this.latencies;
+        if (latencies != null)
+            latencies.received(payload);
+        int handlers = router.match(topic, handler -> {
+            payload.clear();
+            try {
+                handler.payloadArrived(topic, payload);
+            } catch (RuntimeException e) {
+                log.warning("Error handling message on topic " + topic + ": " + e);
+            }
+        });
+        if (handlers == 0)
+            log.info("Received message on topic " + topic + " : " + decodeString(message, message.remaining()));
+        return packetId;
+    }
+
+    private String decodeString(ByteBuffer message, int length) {
+        if (message.hasArray()) {
+            String value = new String(message.array(), message.arrayOffset() + message.position(), length,
+                    StandardCharsets.UTF_8);
+            message.position(message.position() + length);
+            return value;
         }
-        log.info("Received message on topic " + topic.toString() + " : " + content.toString());
-        return message_id;
+        byte[] raw = new byte[length];
+        message.get(raw);
+        return new String(raw, StandardCharsets.UTF_8);
     }
 
-    public void receive_suback(byte[] message) {
+    public void receive_suback(ByteBuffer message) {
+        int packetId = Short.toUnsignedInt(message.getShort());
+        if (packetId != 0)
+            packetIds.release(packetId);
         synchronized (suback) {
             suback.set(true);
             suback.notifyAll();
         }
 
-        log.info("Suback received for message ID: " + Byte.toUnsignedInt(message[0]) + "\t"
-                + Byte.toUnsignedInt(message[1]));
+        log.info("Suback received for message ID: " + packetId);
+    }
+
+    public void receive_puback(ByteBuffer message) {
+        int packetId = Short.toUnsignedInt(message.getShort());
+        acknowledged(packetId);
+        if (log.isLoggable(Level.FINE))
+            log.fine("Received Puback for message ID: " + packetId);
+    }
+
+    /**
+     * Processes the PUBREC of an outgoing QoS 2 message: from now on only the PUBREL is resent, never the message.
+     * Several QoS 2 messages may be at this stage at the same time, so exactly-once delivery costs no more round
+     * trips than the window allows.
+     *
+     * @param message the variable header
+     */
+    public void receive_pubrec(ByteBuffer message) {
+        int packetId = Short.toUnsignedInt(message.getShort());
+        if (window.markReleased(packetId)) {
+            try {
+                inFlightStore.release(packetId);
+            } catch (IOException e) {
+                log.warning("Error updating the in-flight store: " + e.getMessage());
+            }
+        } else {
+            log.warning("Unexpected Pubrec for message ID: " + packetId);
+        }
+        // answered even when unknown, so that the broker can discard its state
+        send_pubrel(packetId);
+    }
+
+    /**
+     * Processes the PUBCOMP ending the flow of an outgoing QoS 2 message.
+     *
+     * @param message the variable header
+     */
+    public void receive_pubcomp(ByteBuffer message) {
+        int packetId = Short.toUnsignedInt(message.getShort());
+        acknowledged(packetId);
+        if (log.isLoggable(Level.FINE))
+            log.fine("Received Pubcomp for message ID: " + packetId);
+    }
+
+    /**
+     * Processes the PUBREL of an incoming QoS 2 message: the broker will not resend it, so its packet identifier may
+     * be used by a new message.
+     *
+     * @param message the variable header
+     */
+    public void receive_pubrel(ByteBuffer message) {
+        int packetId = Short.toUnsignedInt(message.getShort());
+        if (packetId != 0)
+            receivedQos2.remove(packetId);
+        send_pubcomp(packetId);
     }
 
-    public void receive_puback(byte[] message) {
-        synchronized (puback) {
-            puback.set(true);
-            puback.notifyAll();
+    private void acknowledged(int packetId) {
+        // removed from the store before the identifier can be given to a new message
+        try {
+            inFlightStore.remove(packetId);
+        } catch (IOException e) {
+            log.warning("Error updating the in-flight store: " + e.getMessage());
         }
-        log.info("Received Puback for message ID: " + Byte.toUnsignedInt(message[0]) + "\t"
-                + Byte.toUnsignedInt(message[1]));
+        if (!window.release(packetId))
+            log.warning("Unexpected acknowledgement for message ID: " + packetId);
+        drainWaiting();
     }
 
-    public void send_pubrel(byte[] message) {
-        byte[] pubrel = new byte[4];
-        pubrel[0] = createControlHeader(MessageType.PUBREL);
-        pubrel[1] = 2;
-        pubrel[2] = message[0];
-        pubrel[3] = message[1];
+    public void send_pubrel(int packetId) {
         try {
-            brokerSocket.getOutputStream().write(pubrel);
+            write(new OutboundPacket.Ack(MqttEncoder.PUBREL, packetId), false);
         } catch (IOException e) {
             log.warning("Error sending Pubrel: " + e.getMessage());
         }
     }
 
-    public void send_puback(byte[] mesId) {
-        if (mesId == null)
+    public void send_pubrec(int packetId) {
+        try {
+            write(new OutboundPacket.Ack(MqttEncoder.PUBREC, packetId), false);
+        } catch (IOException e) {
+            log.warning("Error sending Pubrec: " + e.getMessage());
+        }
+    }
+
+    public void send_pubcomp(int packetId) {
+        try {
+            write(new OutboundPacket.Ack(MqttEncoder.PUBCOMP, packetId), false);
+        } catch (IOException e) {
+            log.warning("Error sending Pubcomp: " + e.getMessage());
+        }
+    }
+
+    public void send_puback(int packetId) {
+        if (packetId == 0)
             return;
-        byte[] puback = new byte[4];
-        puback[0] = createControlHeader(MessageType.PUBACK);
-        puback[1] = 2;
-        puback[2] = mesId[0];
-        puback[3] = mesId[1];
         try {
-            brokerSocket.getOutputStream().write(puback);
+            write(new OutboundPacket.Ack(MqttEncoder.PUBACK, packetId), false);
         } catch (IOException e) {
             log.warning("Error sending Puback: " + e.getMessage());
         }
@@ -501,10 +1138,6 @@ public class MqttBinaryClient {
         this.retain = retain;
     }
 
-    public void setDup(boolean dup) {
-        this.dup = dup;
-    }
-
     public void setPassword(String password) {
         this.password = password;
     }
@@ -513,14 +1146,225 @@ public class MqttBinaryClient {
         this.username = username;
     }
 
+    /**
+     * Sets the keep-alive interval. A PINGREQ is sent whenever nothing else was sent for that long; 0 disables pings.
+     *
+     * @param keepAlive the keep-alive interval in seconds
+     */
     public void setKeepAlive(int keepAlive) {
         this.keepAlive = keepAlive;
     }
 
+    /**
+     * Sets how long to wait for the PINGRESP before the connection is considered lost. Applies from the next
+     * connection.
+     *
+     * @param pingTimeout the timeout in seconds, 0 to wait for the keep-alive interval
+     */
+    public void setPingTimeout(int pingTimeout) {
+        this.pingTimeout = pingTimeout;
+    }
+
+    /**
+     * Sets how many QoS 1/2 publishes may wait for an acknowledgement at the same time. Applies from the next
+     * connection.
+     *
+     * @param maxInflight the in-flight window size, between 1 and 65535
+     */
+    public void setMaxInflight(int maxInflight) {
+        if (maxInflight < 1 || maxInflight > InFlightWindow.MAX_SIZE)
+            throw new IllegalArgumentException("Window size must be between 1 and " + InFlightWindow.MAX_SIZE);
+        this.maxInflight = maxInflight;
+    }
+
+    public int getInflight() {
+        return window == null ? 0 : window.inFlight();
+    }
+
     public boolean isConnected() {
         return connected;
     }
 
+    /**
+     * Sets the flush policy of the next connections: outgoing packets are coalesced in a buffer written when it holds
+     * flushThreshold bytes or flushDelay milliseconds after its first packet. CONNECT, SUBSCRIBE, PINGREQ and
+     * DISCONNECT are always written immediately.
+     *
+     * @param flushThreshold the number of buffered bytes that triggers a write
+     * @param flushDelay     the maximum time a packet stays buffered, in milliseconds, 0 (the default) to write
+     *                       every packet immediately
+     */
+    public void setFlushPolicy(int flushThreshold, int flushDelay) {
+        if (flushThreshold < 1 || flushDelay < 0)
+            throw new IllegalArgumentException("Invalid flush policy");
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * Makes the client reconnect by itself when the connection is lost, instead of failing the pending messages.
+     * In-flight messages are sent again and, if the broker did not keep the session, every topic filter is subscribed
+     * again. Publishing while the connection is down fails as before.
+     *
+     * @param automaticReconnect true to reconnect automatically
+     */
+    public void setAutomaticReconnect(boolean automaticReconnect) {
+        this.automaticReconnect = automaticReconnect;
+    }
+
+    /**
+     * Sets the backoff of automatic reconnections: the delay before the first attempt, doubled after each failure up to
+     * maxReconnectDelay, then randomized between half and all of it.
+     *
+     * @param minReconnectDelay the initial delay in milliseconds, 1000 by default
+     * @param maxReconnectDelay the maximum delay in milliseconds, 60000 by default
+     */
+    public void setReconnectDelay(long minReconnectDelay, long maxReconnectDelay) {
+        if (minReconnectDelay < 1 || maxReconnectDelay < minReconnectDelay)
+            throw new IllegalArgumentException("Invalid reconnect delays");
+        this.minReconnectDelay = minReconnectDelay;
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    /**
+     * Keeps the messages published while the client is disconnected, instead of dropping them, and sends them in order
+     * once connected, as fast as the in-flight window allows. With SPILL_TO_DISK the overflow goes to a file in the
+     * temporary directory named after the client ID.
+     *
+     * @param maxMessages the maximum number of messages kept in memory
+     * @param maxBytes    the maximum size of the messages kept in memory, in bytes
+     * @param policy      what to do when a message does not fit
+     */
+    public void setOfflineBuffer(int maxMessages, long maxBytes, OverflowPolicy policy) {
+        setOfflineBuffer(maxMessages, maxBytes, policy,
+                Paths.get(System.getProperty("java.io.tmpdir"), "mqtt-" + id + ".spill"));
+    }
+
+    /**
+     * Keeps the messages published while the client is disconnected, see
+     * {@link #setOfflineBuffer(int, long, OverflowPolicy)}.
+     *
+     * @param maxMessages the maximum number of messages kept in memory
+     * @param maxBytes    the maximum size of the messages kept in memory, in bytes
+     * @param policy      what to do when a message does not fit
+     * @param spillFile   the file receiving the overflow with SPILL_TO_DISK
+     */
+    public void setOfflineBuffer(int maxMessages, long maxBytes, OverflowPolicy policy, Path spillFile) {
+        offline = new OfflineQueue(maxMessages, maxBytes, policy, spillFile);
+    }
+
+    /**
+     * Keeps the messages published while the client is disconnected, see
+     * {@link #setOfflineBuffer(int, long, OverflowPolicy)}. With BLOCK, a publish that found no room after blockTimeout
+     * milliseconds fails its delivery token; {@link #disconnect()} fails it at once.
+     *
+     * @param maxMessages  the maximum number of messages kept in memory
+     * @param maxBytes     the maximum size of the messages kept in memory, in bytes
+     * @param policy       what to do when a message does not fit
+     * @param spillFile    the file receiving the overflow with SPILL_TO_DISK
+     * @param blockTimeout the maximum time a publish waits for room with BLOCK, in milliseconds
+     */
+    public void setOfflineBuffer(int maxMessages, long maxBytes, OverflowPolicy policy, Path spillFile,
+            long blockTimeout) {
+        offline = new OfflineQueue(maxMessages, maxBytes, policy, spillFile, blockTimeout);
+    }
+
+    /**
+     * Sets where unacknowledged QoS 1/2 messages are kept to be sent again when a session with cleanSession false is
+     * resumed, by default a {@link MemoryInFlightStore}. A {@link MappedInFlightStore} also survives a crash. Applies
+     * from the next connection.
+     *
+     * @param inFlightStore the in-flight store
+     */
+    public void setInFlightStore(InFlightStore inFlightStore) {
+        this.inFlightStore = inFlightStore;
+    }
+
+    /**
+     * Makes the next connections use a shared NIO event loop instead of a receiver thread per client. Packets are then received, and acknowledgement callbacks run, on the event loop thread.
+     *
+     * @param eventLoop the event loop, or null to go back to the blocking socket and dedicated threads
+     */
+    public void setEventLoop(NioEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Records the publish, receive and subscribe latencies of this client into histograms, see
+     * {@link ClientLatencies}. Off by default.
+     *
+     * @param latencies the histograms, possibly shared with other clients, or null to stop recording
+     */
+    public void setLatencies(ClientLatencies latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Makes the next connections run their blocking receiver loop on an executor instead of a new platform thread.
+     * The executor must run each task on its own thread for as long as the connection lasts, as
+     * {@link #newVirtualThreadExecutor()} does. Ignored when an event loop is set.
+     *
+     * @param receiverExecutor the executor, or null to start a platform thread per connection
+     */
+    public void setReceiverExecutor(Executor receiverExecutor) {
+        this.receiverExecutor = receiverExecutor;
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task, so that many clients can each keep a blocking receiver
+     * for a few kilobytes of memory. Looked up reflectively so that the client still builds and runs on Java 8.
+     *
+     * @return the executor, to be shared by every client
+     * @throws UnsupportedOperationException if the runtime has no virtual threads (before Java 21)
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        }
+    }
+
+    /**
+     * Handles a packet received from the broker, as split by the {@link FrameDecoder} of the receive loop.
+     *
+     * @param header  the first byte of the fixed header
+     * @param message the variable header and payload
+     */
+    void frameReceived(int header, ByteBuffer message) {
+        MessageType messageType = byteToMessageType(header >> 4);
+        switch (messageType) {
+            case PUBLISH:
+                int mesId = receive_publish(header & 0x0F, message);
+                if ((header & 0x06) == 0x04)
+                    send_pubrec(mesId);
+                else
+                    send_puback(mesId);
+                break;
+            case PUBACK:
+                receive_puback(message);
+                break;
+            case PUBREC:
+                receive_pubrec(message);
+                break;
+            case PUBREL:
+                receive_pubrel(message);
+                break;
+            case PUBCOMP:
+                receive_pubcomp(message);
+                break;
+            case SUBACK:
+                receive_suback(message);
+                break;
+            case PINGRESP:
+                keepAliveMonitor.pingResponse();
+                break;
+
+            default:
+                break;
+        }
+    }
+
     private MessageType byteToMessageType(int type) {
         log.fine("Message type : " + type);
         switch (type) {
@@ -558,54 +1402,28 @@ public class MqttBinaryClient {
     }
 
     private class Recevier implements Runnable {
-        @Override
-        public void run() {
-            while (isConnected()) {
-                byte[] header = new byte[2];
-                try {
-                    int header_len = brokerSocket.getInputStream().read(header);
-                    byte[] message = new byte[Byte.toUnsignedInt(header[1])];
-                    MessageType messageType = byteToMessageType(Byte.toUnsignedInt(header[0]) >> 4);
-                    int message_len = brokerSocket.getInputStream().read(message);
-                    switch (messageType) {
-                        case PUBLISH:
-                            byte[] mesId = receive_publish(message);
-                            send_puback(mesId);
-                            break;
-                        case PUBCOMP:
-                        case PUBACK:
-                            receive_puback(message);
-                            break;
-                        case SUBACK:
-                            receive_suback(message);
-                            break;
-                        case PUBREC:
-                            send_pubrel(message);
-                        break;
-
-                        default:
-                            break;
-                    }
-                } catch (IOException e) {
-                    log.warning("Error reading message: " + e.getMessage());
-                }
+        private final SocketChannel channel;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final FrameDecoder.FrameHandler handler = MqttBinaryClient.this::frameReceived;
 
-            }
+        Recevier(SocketChannel channel) {
+            this.channel = channel;
         }
-    }
 
-    private class keepAliveTask implements Runnable {
         @Override
         public void run() {
-            while (isConnected()) {
+            while (isConnected() && channel == brokerChannel) {
                 try {
-                    byte[] mess = new byte[2];
-                    mess[0] = createControlHeader(MessageType.PINGREQ);
-                    mess[1] = 0;
-                    brokerSocket.getOutputStream().write(mess);
-                    Thread.sleep(keepAlive * 1000);
-                } catch (IOException | InterruptedException e) {
-                    log.warning("Error sending ping request: " + e.getMessage());
+                    if (channel.read(decoder.buffer()) < 0) {
+                        connectionClosed(channel, new EOFException("Connection closed by broker"));
+                        break;
+                    }
+                    decoder.decode(handler);
+                } catch (IOException e) {
+                    connectionClosed(channel, e);
+                } catch (RuntimeException e) {
+                    log.warning("Error handling packet: " + e);
+                    connectionClosed(channel, new IOException("Error handling packet", e));
                 }
             }
         }
@@ -0,0 +1,517 @@
+package mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MqttBroker is a minimal MQTT 3.1.1 broker that runs in the JVM, so that the clients, the load generator and the
+ * benchmarks can be exercised without an external broker. It supports CONNECT with will messages, SUBSCRIBE and
+ * UNSUBSCRIBE with wildcards, PUBLISH at QoS 0, 1 and 2 in both directions, retained messages and PINGREQ.
+ * <p>
+ * A single thread serves every connection with a {@link Selector}: the packets decoded from all the reads of one
+ * select are answered and forwarded into per-connection output buffers, which are then written once each, so that
+ * acknowledgements and deliveries are coalesced under load. Sessions are not persistent (CONNACK never reports a
+ * session present), QoS 1 and 2 deliveries are not retried and keep-alive timeouts are not enforced.
+ */
+public class MqttBroker implements Runnable, Closeable {
+    private static final Logger log = Logger.getLogger(MqttBroker.class.getName());
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PENDING_BYTES = 32 * 1024 * 1024;
+
+    private static final byte CONNACK = 0x20;
+    private static final byte SUBACK = (byte) 0x90;
+    private static final byte UNSUBACK = (byte) 0xB0;
+    private static final byte PINGRESP = (byte) 0xD0;
+
+    /**
+     * A retained message.
+     */
+    private static class Retained {
+        final byte[] payload;
+        final int qos;
+
+        Retained(byte[] payload, int qos) {
+            this.payload = payload;
+            this.qos = qos;
+        }
+    }
+
+    /**
+     * A subscription of a connection to a topic filter.
+     */
+    private static class Subscription {
+        final Connection connection;
+        final int qos;
+
+        Subscription(Connection connection, int qos) {
+            this.connection = connection;
+            this.qos = qos;
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private final TopicRouter<Subscription> router;
+    private final Map<String, Retained> retained;
+    private final Map<String, Connection> clients;
+    private final List<Connection> toFlush;
+    private volatile int connectionCount;
+    private volatile boolean running;
+
+    /**
+     * Constructs a new MqttBroker listening on the loopback interface and starts its thread.
+     *
+     * @param port the port, 0 for an ephemeral one, see {@link #port()}
+     * @throws IOException if the port cannot be bound
+     */
+    public MqttBroker(int port) throws IOException {
+        this("127.0.0.1", port);
+    }
+
+    /**
+     * Constructs a new MqttBroker and starts its thread.
+     *
+     * @param host the address to listen on, for example 0.0.0.0 for every interface
+     * @param port the port, 0 for an ephemeral one, see {@link #port()}
+     * @throws IOException if the port cannot be bound
+     */
+    public MqttBroker(String host, int port) throws IOException {
+        router = new TopicRouter<>();
+        retained = new HashMap<>();
+        clients = new HashMap<>();
+        toFlush = new ArrayList<>();
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(host, port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "mqtt-broker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 1883;
+        MqttBroker broker = new MqttBroker("0.0.0.0", port);
+        log.info("MQTT broker listening on port " + broker.port());
+        broker.thread.join();
+    }
+
+    /**
+     * Returns the port the broker listens on.
+     */
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of open connections.
+     */
+    public int connectionCount() {
+        return connectionCount;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (IOException e) {
+                        connection.close(false);
+                    } catch (CancelledKeyException e) {
+                        // closed while its packets were processed
+                    } catch (RuntimeException e) {
+                        // a malformed packet only costs its own connection
+                        log.warning("Closing " + connection.clientId + " after error: " + e);
+                        connection.close(false);
+                    }
+                }
+                flushDirty();
+            } catch (IOException e) {
+                log.warning("Error in broker loop: " + e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection)
+                ((Connection) key.attachment()).close(true);
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            log.warning("Error closing broker: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+        }
+    }
+
+    private void flushDirty() {
+        for (int i = 0; i < toFlush.size(); i++) {
+            Connection connection = toFlush.get(i);
+            connection.dirty = false;
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                connection.close(false);
+            } catch (CancelledKeyException e) {
+                // closed meanwhile
+            }
+        }
+        toFlush.clear();
+    }
+
+    /**
+     * Forwards a message to every matching subscription and keeps it if it is retained.
+     */
+    private void route(String topic, ByteBuffer payload, int qos, boolean retain) {
+        if (retain) {
+            if (payload.hasRemaining()) {
+                byte[] copy = new byte[payload.remaining()];
+                payload.duplicate().get(copy);
+                retained.put(topic, new Retained(copy, qos));
+            } else {
+                retained.remove(topic);
+            }
+        }
+        int topicLength = MqttEncoder.stringLength(topic);
+        router.match(topic, subscription -> subscription.connection.deliver(topic, topicLength, payload,
+                Math.min(qos, subscription.qos), false));
+    }
+
+    /**
+     * Stops the broker and closes every connection.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * A client connection, only used by the broker thread.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final FrameDecoder decoder;
+        private final FrameDecoder.FrameHandler handler;
+        private final PacketIdAllocator outgoing;
+        private final PacketIdSet received;
+        private final Map<String, Subscription> subscriptions;
+        private SelectionKey key;
+        private ByteBuffer out;
+        private boolean dirty;
+        private boolean closed;
+        private String clientId;
+        private String willTopic;
+        private byte[] willMessage;
+        private int willQos;
+        private boolean willRetain;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            decoder = new FrameDecoder();
+            handler = this::packetReceived;
+            outgoing = new PacketIdAllocator();
+            received = new PacketIdSet();
+            subscriptions = new HashMap<>();
+            out = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        }
+
+        void read() throws IOException {
+            if (channel.read(decoder.buffer()) < 0)
+                throw new IOException("Connection closed by client");
+            decoder.decode(handler);
+        }
+
+        private void packetReceived(int header, ByteBuffer body) throws IOException {
+            int type = header >> 4;
+            if (clientId == null && type != 1)
+                throw new IOException("First packet is not CONNECT");
+            switch (type) {
+                case 1:
+                    connect(body);
+                    break;
+                case 3:
+                    publish(header, body);
+                    break;
+                case 4: // PUBACK
+                case 7: // PUBCOMP
+                    outgoing.release(packetId(body));
+                    break;
+                case 5: // PUBREC
+                    ack(MqttEncoder.PUBREL, packetId(body));
+                    break;
+                case 6: // PUBREL
+                    int packetId = packetId(body);
+                    received.remove(packetId);
+                    ack(MqttEncoder.PUBCOMP, packetId);
+                    break;
+                case 8:
+                    subscribe(body);
+                    break;
+                case 10:
+                    unsubscribe(body);
+                    break;
+                case 12:
+                    reserve(2).put(PINGRESP).put((byte) 0);
+                    break;
+                case 14:
+                    willTopic = null;
+                    close(true);
+                    break;
+                default:
+                    throw new IOException("Unexpected packet type " + type);
+            }
+        }
+
+        /**
+         * Reads a packet identifier, which must not be 0.
+         */
+        private int packetId(ByteBuffer body) throws IOException {
+            int packetId = Short.toUnsignedInt(body.getShort());
+            if (packetId == 0)
+                throw new IOException("Packet identifier 0");
+            return packetId;
+        }
+
+        private void connect(ByteBuffer body) throws IOException {
+            if (clientId != null)
+                throw new IOException("Second CONNECT");
+            String protocol = string(body);
+            int level = Byte.toUnsignedInt(body.get());
+            int flags = Byte.toUnsignedInt(body.get());
+            body.getShort(); // keep-alive, not enforced
+            String id = string(body);
+            if (!protocol.equals("MQTT") || level != 4) {
+                reserve(4).put(CONNACK).put((byte) 2).put((byte) 0).put((byte) 1);
+                clientId = "";
+                close(true);
+                return;
+            }
+            if ((flags & 0x04) != 0) {
+                willTopic = string(body);
+                willMessage = new byte[Short.toUnsignedInt(body.getShort())];
+                body.get(willMessage);
+                willQos = (flags >> 3) & 3;
+                willRetain = (flags & 0x20) != 0;
+            }
+            if (id.isEmpty())
+                id = "broker-" + System.identityHashCode(this);
+            clientId = id;
+            Connection previous = clients.put(id, this);
+            if (previous != null)
+                previous.close(false);
+            reserve(4).put(CONNACK).put((byte) 2).put((byte) 0).put((byte) 0);
+        }
+
+        private void publish(int header, ByteBuffer body) throws IOException {
+            int qos = (header >> 1) & 3;
+            boolean retain = (header & 0x01) != 0;
+            String topic = string(body);
+            if (topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0)
+                throw new IOException("Wildcard in topic name " + topic);
+            if (qos == 3)
+                throw new IOException("Invalid QoS 3");
+            int packetId = qos > 0 ? packetId(body) : 0;
+            if (qos == 1) {
+                ack(MqttEncoder.PUBACK, packetId);
+            } else if (qos == 2) {
+                ack(MqttEncoder.PUBREC, packetId);
+                // a resent message whose PUBREC was lost is not forwarded twice
+                if (!received.add(packetId))
+                    return;
+            }
+            route(topic, body, qos, retain);
+        }
+
+        private void subscribe(ByteBuffer body) throws IOException {
+            int packetId = packetId(body);
+            List<String> filters = new ArrayList<>();
+            List<Integer> granted = new ArrayList<>();
+            while (body.hasRemaining()) {
+                String filter = string(body);
+                int qos = Math.min(body.get() & 3, 2);
+                try {
+                    TopicRouter.validate(filter);
+                } catch (IllegalArgumentException e) {
+                    filters.add(null);
+                    granted.add(0x80);
+                    continue;
+                }
+                Subscription subscription = new Subscription(this, qos);
+                Subscription replaced = subscriptions.put(filter, subscription);
+                if (replaced != null)
+                    router.remove(filter, replaced);
+                router.add(filter, subscription);
+                filters.add(filter);
+                granted.add(qos);
+            }
+            ByteBuffer suback = reserve(5 + 2 + granted.size()).put(SUBACK);
+            MqttEncoder.putRemainingLength(suback, 2 + granted.size());
+            suback.putShort((short) packetId);
+            for (int code : granted)
+                suback.put((byte) code);
+            // retained messages follow the SUBACK
+            for (int i = 0; i < filters.size(); i++) {
+                String filter = filters.get(i);
+                if (filter == null)
+                    continue;
+                for (Map.Entry<String, Retained> entry : retained.entrySet()) {
+                    if (TopicRouter.matches(filter, entry.getKey())) {
+                        Retained message = entry.getValue();
+                        deliver(entry.getKey(), MqttEncoder.stringLength(entry.getKey()),
+                                ByteBuffer.wrap(message.payload), Math.min(message.qos, granted.get(i)), true);
+                    }
+                }
+            }
+        }
+
+        private void unsubscribe(ByteBuffer body) throws IOException {
+            int packetId = packetId(body);
+            while (body.hasRemaining()) {
+                String filter = string(body);
+                Subscription subscription = subscriptions.remove(filter);
+                if (subscription != null)
+                    router.remove(filter, subscription);
+            }
+            reserve(4).put(UNSUBACK).put((byte) 2).putShort((short) packetId);
+        }
+
+        /**
+         * Queues a PUBLISH for this client, unless it is too far behind.
+         */
+        void deliver(String topic, int topicLength, ByteBuffer payload, int qos, boolean retain) {
+            if (closed)
+                return;
+            if (out.position() > MAX_PENDING_BYTES) {
+                // a QoS 0 message may be lost anyway, not one the publisher was told was delivered
+                if (qos > 0)
+                    log.warning("Dropping QoS " + qos + " message on " + topic + " for slow client " + clientId);
+                else if (log.isLoggable(Level.FINE))
+                    log.fine("Dropping message on " + topic + " for slow client " + clientId);
+                return;
+            }
+            int packetId = 0;
+            if (qos > 0) {
+                packetId = outgoing.acquire();
+                if (packetId == 0) {
+                    log.warning("Dropping QoS " + qos + " message on " + topic + ": no packet identifier left for "
+                            + clientId);
+                    return;
+                }
+            }
+            int remaining = MqttEncoder.publishRemainingLength(topicLength, payload.remaining(), qos);
+            ByteBuffer dst = reserve(5 + remaining);
+            MqttEncoder.putPublishHeader(dst, topic, topicLength, remaining, qos, retain, false, packetId);
+            dst.put(payload.duplicate());
+        }
+
+        private void ack(byte type, int packetId) {
+            reserve(4).put(type).put((byte) 2).putShort((short) packetId);
+        }
+
+        /**
+         * Returns the output buffer with room for the given number of bytes, and marks the connection for flushing.
+         */
+        private ByteBuffer reserve(int bytes) {
+            if (out.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(out.position() + bytes) << 1);
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            if (!dirty) {
+                dirty = true;
+                toFlush.add(this);
+            }
+            return out;
+        }
+
+        void flush() throws IOException {
+            if (closed)
+                return;
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection, after writing what is buffered if it is a normal close, and publishes the will
+         * message if the client did not disconnect.
+         */
+        void close(boolean graceful) {
+            if (closed)
+                return;
+            if (graceful) {
+                try {
+                    out.flip();
+                    channel.write(out);
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            closed = true;
+            connectionCount--;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            for (Map.Entry<String, Subscription> entry : subscriptions.entrySet())
+                router.remove(entry.getKey(), entry.getValue());
+            if (clientId != null && clients.get(clientId) == this)
+                clients.remove(clientId);
+            if (willTopic != null)
+                route(willTopic, ByteBuffer.wrap(willMessage), willQos, willRetain);
+        }
+    }
+
+    private static String string(ByteBuffer body) {
+        int length = Short.toUnsignedInt(body.getShort());
+        byte[] raw = new byte[length];
+        body.get(raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+}
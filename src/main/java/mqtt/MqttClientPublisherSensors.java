@@ -3,12 +3,10 @@ package mqtt;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.eclipse.paho.client.mqttv3.*;
 
-public class MqttClientPublisherSensors implements MqttCallback {
+public class MqttClientPublisherSensors implements MqttCallbackExtended {
 	private static Random random = new Random();
 	private static final Logger LOGGER = Logger.getLogger(MqttClientPublisherSensors.class.getName());
 	private AtomicReference<Double> avgTemperature = new AtomicReference<>(0.0);
@@ -27,7 +25,7 @@ public class MqttClientPublisherSensors implements MqttCallback {
 	public static void main(String[] args) {
 		String topic = "/home/Lyon/sido/";
 		String clientId = "myClientID_PubSensors" + random.nextInt(1000);
-		String brokerURI = "tcp://137.194.140.22:1883";
+		String brokerURI = System.getProperty("mqtt.broker", "tcp://137.194.140.22:1883");
 
 		try {
 			MqttClientPublisherSensors mqttClientPublisherSensors = new MqttClientPublisherSensors(topic, clientId);
@@ -40,8 +38,23 @@ public class MqttClientPublisherSensors implements MqttCallback {
 
 	@Override
 	public void connectionLost(Throwable cause) {
-		LOGGER.info("Connection lost because: " + cause);
-		System.exit(1);
+		LOGGER.warning("Connection lost because: " + cause + ", reconnecting");
+	}
+
+	@Override
+	public void connectComplete(boolean reconnect, String serverURI) {
+		if (!reconnect)
+			return;
+		LOGGER.info("Mqtt Client: reconnected to " + serverURI);
+		// the session is clean, the subscription was lost with it; subscribe blocks until the SUBACK, which the
+		// callback thread itself would have to receive
+		new Thread(() -> {
+			try {
+				client.subscribe(topic + "averages/#");
+			} catch (MqttException e) {
+				LOGGER.severe(e.getMessage());
+			}
+		}, "resubscribe").start();
 	}
 
 	private void connect(String brokerURI) throws MqttException {
@@ -49,6 +62,7 @@ public class MqttClientPublisherSensors implements MqttCallback {
 		client = new MqttClient(brokerURI, clientId);
 		MqttConnectOptions connectOptions = new MqttConnectOptions();
 		connectOptions.setCleanSession(true);
+		connectOptions.setAutomaticReconnect(true);
 
 		LOGGER.info("Mqtt Client: Connecting to Mqtt Broker running at: " + brokerURI);
 		client.connect(connectOptions);
@@ -62,21 +76,20 @@ public class MqttClientPublisherSensors implements MqttCallback {
 
 	@Override
 	public void messageArrived(String topic, MqttMessage message) throws Exception {
-			if (topic.contains("temperature")) {
-				String regex = "Average temperature: (\\d+\\.\\d+)";
-				Pattern p = Pattern.compile(regex);
-				Matcher m = p.matcher(message.toString());
-				double t = m.find() ? Double.parseDouble(m.group(1)) : 0.0;
-				LOGGER.info("Average temperature: " +t);
-				avgTemperature.set(t);
+			SensorCodec.Summary summary;
+			try {
+				summary = SensorCodec.decodeSummary(message.getPayload());
+			} catch (IllegalArgumentException e) {
+				LOGGER.warning("Ignoring the message on " + topic + ": " + e.getMessage());
+				return;
+			}
+			if (topic.endsWith("/temperature")) {
+				LOGGER.info("Average temperature of " + summary);
+				avgTemperature.set(summary.mean);
 
 			} else {
-				String regex = "Average humidity: (\\d+\\.\\d+)";
-				Pattern p = Pattern.compile(regex);
-				Matcher m = p.matcher(message.toString());
-				double h = m.find() ? Double.parseDouble(m.group(1)) : 0.0;
-				LOGGER.info("Average humidity: " +h);
-				avgHumidity.set(h);
+				LOGGER.info("Average humidity of " + summary);
+				avgHumidity.set(summary.mean);
 			}
 		}
 
@@ -108,7 +121,8 @@ public class MqttClientPublisherSensors implements MqttCallback {
 					}
 					String suffix = sendTemperature ? "/value" : "/value2";
 					String data_topic = topic + sensor + suffix;
-					MqttMessage message = new MqttMessage(String.valueOf(value).getBytes());
+					MqttMessage message = new MqttMessage(
+							SensorCodec.encodeReading(sensor, System.currentTimeMillis(), value));
 					message.setQos(qos);
 					message.setRetained(true);
 					try {
@@ -1,37 +1,42 @@
 package mqtt;
 
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-public class MqttClientSubscriberSensors implements MqttCallback {
+public class MqttClientSubscriberSensors implements MqttCallbackExtended {
 	private static Random random = new Random();
 	private MqttClient client;
 	private String topic;
 	private String clientId;
-	private Double sumTemperature;
-	private Double sumHumidity;
+	private final SensorAggregator aggregator;
 
-	private Thread tempWriter, humWriter;
-
-	private static AtomicInteger COUNTER_TEMP = new AtomicInteger(0);
-	private static AtomicInteger COUNTER_HUM = new AtomicInteger(0);
 	Logger log = Logger.getLogger(MqttClientSubscriberSensors.class.getName());
 
 	public MqttClientSubscriberSensors(String topic, String clientId) {
+		this(topic, clientId, 60000, 60000, 0);
+	}
+
+	/**
+	 * Constructs a subscriber that publishes the average and the 50th, 95th and 99th percentiles of every sensor and
+	 * metric over a time window.
+	 *
+	 * @param windowMillis the length of the window, in milliseconds, a multiple of the slide
+	 * @param slideMillis  the time between two averages, in milliseconds, equal to the window for tumbling windows
+	 * @param count        the number of readings of a sensor after which the average of its open window is published
+	 *                     early, 0 to publish only when windows end
+	 */
+	public MqttClientSubscriberSensors(String topic, String clientId, long windowMillis, long slideMillis,
+			int count) {
 		this.topic = topic;
 		this.clientId = clientId;
-		this.sumTemperature = new Double(0);
-		this.sumHumidity = new Double(0);
-		tempWriter = new Thread(new TemperatureWriterTask());
-		humWriter = new Thread(new HumidityWriterTask());
+		this.aggregator = new SensorAggregator(windowMillis, slideMillis, count, this::publishAverage);
 	}
 
 	public static void main(String[] args) {
@@ -39,12 +44,16 @@ public class MqttClientSubscriberSensors implements MqttCallback {
 		String topic = "/home/Lyon/sido/#";
 		String messageContent = "Message from my Lab's Paho Mqtt Client";
 		int qos = 0;
-		String brokerURI = "tcp://137.194.140.22:1883";
+		String brokerURI = System.getProperty("mqtt.broker", "tcp://137.194.140.22:1883");
 		String clientId = "myClientID_SubSensors" + random.nextInt(1000);
+		long window = Long.getLong("mqtt.window", 60000);
+		long slide = Long.getLong("mqtt.slide", window);
+		int count = Integer.getInteger("mqtt.count", 0);
 		// MemoryPersistence persistence = new MemoryPersistence();
 
 		try {
-			MqttClientSubscriberSensors subscribingMqttClient = new MqttClientSubscriberSensors(topic, clientId);
+			MqttClientSubscriberSensors subscribingMqttClient = new MqttClientSubscriberSensors(topic, clientId, window,
+					slide, count);
 			subscribingMqttClient.connect(brokerURI, topic);
 		} catch (MqttException e) {
 			e.printStackTrace();
@@ -60,48 +69,49 @@ public class MqttClientSubscriberSensors implements MqttCallback {
 		MqttConnectOptions connectOptions = new MqttConnectOptions();
 		// clean session
 		connectOptions.setCleanSession(false);
+		// reconnect with exponential backoff instead of exiting when the broker restarts
+		connectOptions.setAutomaticReconnect(true);
+		connectOptions.setMaxReconnectDelay(60000);
 
 		client.connect(connectOptions);
 		client.subscribe(topic);
-		humWriter.start();
-		tempWriter.start();
+		aggregator.start();
 
 	}
 
 	@Override
 	public void connectionLost(Throwable cause) {
-		log.info("Connection lost because: " + cause);
-		System.exit(1);
+		log.warning("Connection lost because: " + cause + ", reconnecting");
 	}
 
-	public double getAverage(double sum, int n) {
-		return sum / n;
+	@Override
+	public void connectComplete(boolean reconnect, String serverURI) {
+		if (!reconnect)
+			return;
+		log.info("Reconnected to " + serverURI);
+		// subscribe blocks until the SUBACK, which the callback thread itself would have to receive
+		new Thread(() -> {
+			try {
+				client.subscribe(topic);
+			} catch (MqttException e) {
+				log.warning("Error subscribing again to " + topic + ": " + e.getMessage());
+			}
+		}, "resubscribe").start();
 	}
 
 	@Override
 	public void messageArrived(String topic, MqttMessage message) throws Exception {
 		// log.info("Message arrived from topic " + topic + " : " + "\nContent: " + message.toString());
-		String value = topic.substring(topic.lastIndexOf("/") + 1);
-		if (value.equals("value")) {
-			// log.info("COUNTER_TEMP: " + COUNTER_TEMP);
-			sumTemperature += Double.parseDouble(message.toString());
-			COUNTER_TEMP.incrementAndGet();
-		} else if (value.equals("value2")) {
-			// log.info("COUNTER_HUM: " + COUNTER_HUM);
-			sumHumidity += Double.parseDouble(message.toString());
-			COUNTER_HUM.incrementAndGet();
-		}
-		synchronized (COUNTER_HUM) {
-			if (COUNTER_HUM.get() > 10) {
-				COUNTER_HUM.notifyAll();
-			}
-		}
-
-		synchronized (COUNTER_TEMP) {
-			if (COUNTER_TEMP.get() > 10)
-				COUNTER_TEMP.notifyAll();
+		String value = topic.substring(topic.lastIndexOf('/') + 1);
+		String metric = value.equals("value") ? "temperature" : value.equals("value2") ? "humidity" : null;
+		if (metric == null)
+			return;
+		try {
+			SensorCodec.decodeReadings(message.getPayload(),
+					(sensor, timestamp, reading) -> aggregator.record(sensor, metric, reading, timestamp));
+		} catch (IllegalArgumentException e) {
+			log.warning("Ignoring the message on " + topic + ": " + e.getMessage());
 		}
-
 	}
 
 	@Override
@@ -109,86 +119,18 @@ public class MqttClientSubscriberSensors implements MqttCallback {
 		// log.info(clientId + " - Delivery complete");
 	}
 
-	private class TemperatureWriterTask implements Runnable {
-
-		private boolean sendTemperature = false;
-		private double avgTemp;
-
-		@Override
-		public void run() {
-			while (true) {
-				synchronized (COUNTER_TEMP) {
-					try {
-						COUNTER_TEMP.wait(); // Wait for the condition to be met
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-					}
-					if (COUNTER_TEMP.get() > 100) {
-						avgTemp = getAverage(sumTemperature, COUNTER_TEMP.get());
-						sumTemperature = 0.0;
-						COUNTER_TEMP.set(0);
-						sendTemperature = true;
-					}
-				}
-				if (sendTemperature) {
-					try {
-
-						String messageContent = "Average temperature: " + avgTemp;
-						log.info(messageContent);
-						MqttMessage msg = new MqttMessage(messageContent.getBytes());
-						msg.setQos(0);
-						msg.setRetained(true);
-						String topicAvg = "/home/Lyon/sido/averages/temperature";
-						synchronized (client){
-						client.publish(topicAvg, msg);
-						}
-					} catch (MqttException e) {
-						e.printStackTrace();
-					}
-				}
-				sendTemperature = false;
-			}
-		}
-	}
-
-	private class HumidityWriterTask implements Runnable {
-
-		private boolean sendHumidity = false;
-		private double avgHum;
-
-		@Override
-		public void run() {
-			while (true) {
-				synchronized (COUNTER_HUM) {
-					try {
-						COUNTER_HUM.wait(); // Wait for the condition to be met
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-					}
-					if (COUNTER_HUM.get() > 100) {
-						avgHum = getAverage(sumHumidity, COUNTER_HUM.get());
-						sumHumidity = 0.0;
-						COUNTER_HUM.set(0);
-						sendHumidity = true;
-					}
-				}
-				if (sendHumidity) {
-					try {
-						String messageContent = "Average humidity: " + avgHum;
-						log.info(messageContent);
-						MqttMessage msg = new MqttMessage(messageContent.getBytes());
-						msg.setQos(0);
-						msg.setRetained(true);
-						String topicAvg = "/home/Lyon/sido/averages/humidity";
-						synchronized (client) {
-							client.publish(topicAvg, msg);
-						}
-					} catch (MqttException e) {
-						e.printStackTrace();
-					}
-				}
-				sendHumidity = false;
-			}
+	private void publishAverage(String sensor, String metric, StreamStats.Snapshot window, boolean early) {
+		double[] quantiles = window.quantiles(0.5, 0.95, 0.99);
+		SensorCodec.Summary summary = new SensorCodec.Summary(sensor, System.currentTimeMillis(), window.count,
+				window.mean(), quantiles[0], quantiles[1], quantiles[2]);
+		log.info("Average " + metric + (early ? " so far of " : " of ") + summary);
+		MqttMessage msg = new MqttMessage(SensorCodec.encodeSummary(summary));
+		msg.setQos(0);
+		msg.setRetained(true);
+		try {
+			client.publish("/home/Lyon/sido/averages/" + sensor + "/" + metric, msg);
+		} catch (MqttException e) {
+			log.warning("Error publishing the average " + metric + " of " + sensor + ": " + e.getMessage());
 		}
 	}
 }
@@ -0,0 +1,144 @@
+package mqtt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MqttEncoder writes MQTT packets straight into a ByteBuffer without building intermediate arrays, lists or strings.
+ * {@link #buffer(int)} provides a direct buffer owned by the calling thread and reused for every packet, so a packet
+ * encoded there is only valid until the same thread encodes its next packet.
+ */
+final class MqttEncoder {
+    public static final int MAX_LENGTH = 268435455;
+    public static final int MAX_STRING_LEN = 65535;
+
+    public static final byte PUBLISH = 0x30;
+    public static final byte PUBACK = 0x40;
+    public static final byte PUBREC = 0x50;
+    public static final byte PUBREL = 0x62;
+    public static final byte PUBCOMP = 0x70;
+    public static final byte PINGREQ = (byte) 0xC0;
+    public static final byte DISCONNECT = (byte) 0xE0;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    private MqttEncoder() {
+    }
+
+    /**
+     * Returns the calling thread's encoding buffer, cleared and large enough for the given packet size.
+     *
+     * @param capacity the number of bytes needed
+     * @return the reusable buffer
+     */
+    static ByteBuffer buffer(int capacity) {
+        ByteBuffer buffer = buffers.get();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(capacity - 1) << 1);
+            buffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    static void putPublishHeader(ByteBuffer dst, String topic, int topicLength, int remaining, int qos,
+            boolean retain, boolean dup, int packetId) {
+        dst.put(publishFlags(qos, retain, dup));
+        putRemainingLength(dst, remaining);
+        dst.putShort((short) topicLength);
+        putUtf8(dst, topic);
+        if (qos > 0)
+            dst.putShort((short) packetId);
+    }
+
+    static byte publishFlags(int qos, boolean retain, boolean dup) {
+        return (byte) (PUBLISH | (dup ? 0x08 : 0) | (qos << 1) | (retain ? 0x01 : 0));
+    }
+
+    static int publishRemainingLength(int topicLength, int payloadLength, int qos) {
+        long remaining = 2L + topicLength + (qos > 0 ? 2 : 0) + payloadLength;
+        if (remaining > MAX_LENGTH)
+            throw new IllegalArgumentException("Length must be less than " + MAX_LENGTH);
+        return (int) remaining;
+    }
+
+    /**
+     * Returns the UTF-8 length of an MQTT string, checking it fits the 16-bit length prefix.
+     */
+    static int stringLength(String data) {
+        int length = utf8Length(data);
+        if (length > MAX_STRING_LEN)
+            throw new IllegalArgumentException("Length must be less than " + MAX_STRING_LEN);
+        return length;
+    }
+
+    static int remainingLengthSize(int length) {
+        if (length < 128)
+            return 1;
+        if (length < 16384)
+            return 2;
+        if (length < 2097152)
+            return 3;
+        return 4;
+    }
+
+    static void putRemainingLength(ByteBuffer dst, int length) {
+        if (length > MAX_LENGTH)
+            throw new IllegalArgumentException("Length must be less than " + MAX_LENGTH);
+        do {
+            int encodedByte = length & 127;
+            length >>>= 7;
+            // if there are more data to encode, set the top bit of this byte
+            if (length > 0)
+                encodedByte |= 128;
+            dst.put((byte) encodedByte);
+        } while (length > 0);
+    }
+
+    static int utf8Length(CharSequence data) {
+        int length = data.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(data.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    static void putUtf8(ByteBuffer dst, CharSequence data) {
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                dst.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(data.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, data.charAt(++i));
+                dst.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else {
+                // lone surrogates are replaced by '?' like String.getBytes does
+                dst.put((byte) '?');
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package mqtt;
+
+/**
+ * MqttMessageHandler receives the messages published on the topics matching the filter it was subscribed with, see
+ * {@link MqttBinaryClient#subscribe(String, MqttMessageHandler)}.
+ */
+@FunctionalInterface
+public interface MqttMessageHandler {
+    /**
+     * Called on the receiver thread for every matching message. Must not block.
+     *
+     * @param topic   the topic the message was published to
+     * @param message the message
+     */
+    void messageArrived(String topic, String message);
+}
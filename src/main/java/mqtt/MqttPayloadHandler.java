@@ -0,0 +1,20 @@
+package mqtt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MqttPayloadHandler receives the raw payload of the messages published on the topics matching the filter it was
+ * subscribed with, see {@link MqttBinaryClient#subscribePayload(String, MqttPayloadHandler)}. Unlike
+ * {@link MqttMessageHandler}, the payload is neither copied nor decoded, which suits binary formats.
+ */
+@FunctionalInterface
+public interface MqttPayloadHandler {
+    /**
+     * Called on the receiver thread for every matching message. Must not block.
+     *
+     * @param topic   the topic the message was published to
+     * @param payload a read-only view of the payload in the client's read buffer, only valid until the method returns;
+     *                copy it to keep it
+     */
+    void payloadArrived(String topic, ByteBuffer payload);
+}
@@ -0,0 +1,152 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * NioConnection is a non-blocking broker connection serviced by a {@link NioEventLoop}. Writes go straight to the
+ * socket when it accepts them; the remainder is buffered and written by the loop once the socket is writable again.
+ * At most MAX_PENDING_BYTES are buffered: beyond that, a writing thread waits for the loop to drain the buffer, which
+ * holds up the PacketWriter of the connection and with it the publishers. Only the loop thread itself, which writes
+ * the acknowledgements of incoming packets, is never held up.
+ */
+class NioConnection {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final FrameDecoder decoder;
+    private final FrameDecoder.FrameHandler handler;
+    private final Consumer<IOException> closed;
+
+    private SelectionKey key;
+    private ByteBuffer pending;
+    private boolean writeRequested;
+    private volatile boolean isClosed;
+
+    /**
+     * Constructs a new NioConnection.
+     *
+     * @param loop    the event loop servicing the connection
+     * @param channel the connected channel, switched to non-blocking mode
+     * @param handler the handler receiving the decoded packets, called on the loop thread
+     * @param closed  called once when the connection is lost or closed
+     * @throws IOException if the channel cannot be switched to non-blocking mode
+     */
+    NioConnection(NioEventLoop loop, SocketChannel channel, FrameDecoder.FrameHandler handler,
+            Consumer<IOException> closed) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.handler = handler;
+        this.closed = closed;
+        decoder = new FrameDecoder();
+        pending = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        channel.configureBlocking(false);
+        loop.register(this);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * Writes a whole packet, buffering what the socket does not accept immediately. Waits while MAX_PENDING_BYTES are
+     * already buffered, unless called by the loop thread.
+     *
+     * @param packet the encoded packet
+     * @throws IOException if the connection is closed or the write fails
+     */
+    synchronized void write(ByteBuffer packet) throws IOException {
+        if (!loop.inEventLoop()) {
+            while (!isClosed && pending.position() > 0
+                    && pending.position() + packet.remaining() > MAX_PENDING_BYTES) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the socket", e);
+                }
+            }
+        }
+        if (isClosed)
+            throw new IOException("Connection closed");
+        if (pending.position() == 0) {
+            channel.write(packet);
+            if (!packet.hasRemaining())
+                return;
+        }
+        if (pending.remaining() < packet.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(
+                    Integer.highestOneBit(pending.position() + packet.remaining()) << 1);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.put(packet);
+        if (!writeRequested) {
+            writeRequested = true;
+            if (loop.inEventLoop())
+                flush();
+            else
+                loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Writes buffered bytes; called on the loop thread. Keeps OP_WRITE interest while bytes remain.
+     */
+    synchronized void flush() throws IOException {
+        if (isClosed || key == null)
+            return;
+        pending.flip();
+        channel.write(pending);
+        pending.compact();
+        notifyAll();
+        writeRequested = pending.position() > 0;
+        key.interestOps(writeRequested ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads what the socket has available and decodes it; called on the loop thread.
+     */
+    void read() throws IOException {
+        int read = channel.read(decoder.buffer());
+        if (read < 0)
+            throw new IOException("Connection closed by broker");
+        decoder.decode(handler);
+    }
+
+    /**
+     * Closes the channel and reports the reason once.
+     *
+     * @param cause the reason, or null for a normal close
+     */
+    void close(IOException cause) {
+        synchronized (this) {
+            if (isClosed)
+                return;
+            isClosed = true;
+            notifyAll();
+        }
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already closing
+        }
+        closed.accept(cause);
+    }
+}
@@ -0,0 +1,166 @@
+package mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * NioEventLoop services many broker connections from a single thread with a {@link Selector}: it reads and decodes
+ * incoming packets, and finishes the writes the sockets could not accept immediately. An MqttBinaryClient uses it
+ * instead of its own receiver thread when given one with
+ * {@link MqttBinaryClient#setEventLoop(NioEventLoop)}.
+ */
+public class NioEventLoop implements Runnable, Closeable {
+    private static final Logger log = Logger.getLogger(NioEventLoop.class.getName());
+    private static final long TICK_MILLIS = 1000;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<NioConnection> registrations;
+    private final ConcurrentLinkedQueue<NioConnection> writeRequests;
+    private final List<NioConnection> connections;
+    private volatile int connectionCount;
+    private volatile boolean running;
+
+    /**
+     * Constructs a new NioEventLoop and starts its thread.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioEventLoop() throws IOException {
+        selector = Selector.open();
+        registrations = new ConcurrentLinkedQueue<>();
+        writeRequests = new ConcurrentLinkedQueue<>();
+        connections = new ArrayList<>();
+        running = true;
+        thread = new Thread(this, "mqtt-nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands a connected channel over to the loop. Reads start on the loop thread as soon as it wakes up.
+     */
+    void register(NioConnection connection) {
+        registrations.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write the bytes a connection could not write immediately.
+     */
+    void requestWrite(NioConnection connection) {
+        writeRequests.offer(connection);
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns the number of connections currently serviced by the loop.
+     */
+    public int connectionCount() {
+        return connectionCount;
+    }
+
+    @Override
+    public void run() {
+        long nextTick = 0;
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+                processRegistrations();
+                processWriteRequests();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (IOException e) {
+                        connection.close(e);
+                    } catch (CancelledKeyException e) {
+                        // the connection was closed by another thread
+                    } catch (RuntimeException e) {
+                        // a malformed packet or a failing handler only costs its own connection
+                        log.warning("Error handling packet: " + e);
+                        connection.close(new IOException("Error handling packet", e));
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    nextTick = now + TICK_MILLIS;
+                    removeClosed();
+                }
+            } catch (IOException e) {
+                log.warning("Error in event loop: " + e.getMessage());
+            }
+        }
+        for (NioConnection connection : connections)
+            connection.close(new IOException("Event loop closed"));
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warning("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    private void processRegistrations() {
+        NioConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                connection.attach(connection.channel().register(selector, SelectionKey.OP_READ, connection));
+                connections.add(connection);
+                connectionCount = connections.size();
+                // writes issued before the registration completed
+                connection.flush();
+            } catch (IOException e) {
+                connection.close(e);
+            }
+        }
+    }
+
+    private void processWriteRequests() {
+        NioConnection connection;
+        while ((connection = writeRequests.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                connection.close(e);
+            } catch (CancelledKeyException e) {
+                // the connection was closed by another thread
+            }
+        }
+    }
+
+    private void removeClosed() {
+        Iterator<NioConnection> it = connections.iterator();
+        while (it.hasNext()) {
+            if (it.next().isClosed())
+                it.remove();
+        }
+        connectionCount = connections.size();
+    }
+
+    /**
+     * Stops the loop and closes every connection it services.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
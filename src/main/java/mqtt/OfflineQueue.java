@@ -0,0 +1,277 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * OfflineQueue holds the messages published while the client is disconnected, bounded both in number of messages and
+ * in encoded bytes. What happens to a message that does not fit depends on the {@link OverflowPolicy}. With
+ * SPILL_TO_DISK, once a message has been spilled every following one is spilled too, until the file has been read
+ * back, so that messages always leave the queue in the order they were published.
+ * <p>
+ * With BLOCK, a publisher waits for room at most blockTimeout milliseconds, and no longer once the queue is closed by
+ * {@link #close(IOException)}.
+ */
+class OfflineQueue {
+    private static final Logger log = Logger.getLogger(OfflineQueue.class.getName());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    static final long DEFAULT_BLOCK_TIMEOUT = 30000;
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final Path spillFile;
+    private final long blockTimeout;
+    private final ArrayDeque<OutboundPacket.Publish> memory;
+    private long bytes;
+    private int polled;
+    private IOException closed;
+
+    private FileChannel spill;
+    private final ArrayDeque<CompletableFuture<Void>> spilledTokens;
+    private long writePosition, readPosition;
+    private ByteBuffer readBuffer;
+
+    /**
+     * Constructs a new OfflineQueue.
+     *
+     * @param maxMessages the maximum number of messages kept in memory
+     * @param maxBytes    the maximum size of the messages kept in memory, in encoded bytes
+     * @param policy      what to do with messages that do not fit
+     * @param spillFile   the file receiving the overflow with {@link OverflowPolicy#SPILL_TO_DISK}
+     */
+    OfflineQueue(int maxMessages, long maxBytes, OverflowPolicy policy, Path spillFile) {
+        this(maxMessages, maxBytes, policy, spillFile, DEFAULT_BLOCK_TIMEOUT);
+    }
+
+    /**
+     * Constructs a new OfflineQueue.
+     *
+     * @param maxMessages  the maximum number of messages kept in memory
+     * @param maxBytes     the maximum size of the messages kept in memory, in encoded bytes
+     * @param policy       what to do with messages that do not fit
+     * @param spillFile    the file receiving the overflow with {@link OverflowPolicy#SPILL_TO_DISK}
+     * @param blockTimeout the maximum time a publisher waits for room with {@link OverflowPolicy#BLOCK}, in
+     *                     milliseconds
+     */
+    OfflineQueue(int maxMessages, long maxBytes, OverflowPolicy policy, Path spillFile, long blockTimeout) {
+        if (maxMessages < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("Offline buffer bounds must be positive");
+        if (blockTimeout < 1)
+            throw new IllegalArgumentException("The block timeout must be positive");
+        if (policy == OverflowPolicy.SPILL_TO_DISK && spillFile == null)
+            throw new IllegalArgumentException("SPILL_TO_DISK requires a spill file");
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.blockTimeout = blockTimeout;
+        memory = new ArrayDeque<>();
+        spilledTokens = new ArrayDeque<>();
+    }
+
+    /**
+     * Adds a message at the end of the queue, applying the overflow policy if it is full.
+     *
+     * @param packet the message
+     * @return false if the message was rejected; its delivery token is then left to the caller
+     * @throws InterruptedException if interrupted while waiting for room with {@link OverflowPolicy#BLOCK}
+     * @throws IOException          if the queue is closed, or still full after the block timeout
+     */
+    synchronized boolean offer(OutboundPacket.Publish packet) throws InterruptedException, IOException {
+        if (closed != null)
+            throw closed;
+        int length = packet.length();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        if (!spilledTokens.isEmpty())
+            return spill(packet);
+        while (memory.size() >= maxMessages || bytes + length > maxBytes) {
+            // a message larger than the whole buffer can only be spilled
+            if (memory.isEmpty() && policy != OverflowPolicy.SPILL_TO_DISK)
+                return false;
+            switch (policy) {
+                case DROP_OLDEST:
+                    OutboundPacket.Publish oldest = memory.poll();
+                    bytes -= oldest.length();
+                    oldest.token.completeExceptionally(new IOException("Dropped from the offline buffer"));
+                    break;
+                case BLOCK:
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0)
+                        throw new IOException("No room in the offline buffer after " + blockTimeout + " ms");
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                    if (closed != null)
+                        throw closed;
+                    break;
+                case SPILL_TO_DISK:
+                    return spill(packet);
+                default:
+                    return false;
+            }
+        }
+        memory.add(packet);
+        bytes += length;
+        return true;
+    }
+
+    /**
+     * Removes the oldest message. The queue is not considered empty until {@link #sent()} is called for it, so that
+     * newer messages are not sent before it.
+     *
+     * @return the message, or null if the queue is empty
+     */
+    synchronized OutboundPacket.Publish poll() {
+        OutboundPacket.Publish packet = memory.poll();
+        if (packet != null) {
+            bytes -= packet.length();
+            notifyAll();
+        } else if (!spilledTokens.isEmpty()) {
+            packet = unspill();
+        }
+        if (packet != null)
+            polled++;
+        return packet;
+    }
+
+    /**
+     * Tells that a message returned by {@link #poll()} has been handed to the writer.
+     */
+    synchronized void sent() {
+        polled--;
+    }
+
+    synchronized boolean isEmpty() {
+        return memory.isEmpty() && spilledTokens.isEmpty() && polled == 0;
+    }
+
+    synchronized int size() {
+        return memory.size() + spilledTokens.size();
+    }
+
+    /**
+     * Fails the delivery token of every buffered message, in memory or spilled, and wakes up the publishers waiting for
+     * room. Messages offered later are rejected until {@link #reopen()}.
+     *
+     * @param cause the failure of the delivery tokens
+     */
+    synchronized void close(IOException cause) {
+        closed = cause;
+        OutboundPacket.Publish packet;
+        while ((packet = memory.poll()) != null)
+            packet.token.completeExceptionally(cause);
+        bytes = 0;
+        CompletableFuture<Void> token;
+        while ((token = spilledTokens.poll()) != null)
+            token.completeExceptionally(cause);
+        if (spill != null) {
+            try {
+                spill.truncate(0);
+                spill.close();
+            } catch (IOException e) {
+                log.warning("Error closing " + spillFile + ": " + e.getMessage());
+            }
+            spill = null;
+        }
+        writePosition = readPosition = 0;
+        readBuffer = null;
+        notifyAll();
+    }
+
+    /**
+     * Accepts messages again after {@link #close(IOException)}.
+     */
+    synchronized void reopen() {
+        closed = null;
+    }
+
+    private boolean spill(OutboundPacket.Publish packet) {
+        byte[] topic = packet.topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = packet.payload != null ? packet.payload.duplicate()
+                : StandardCharsets.UTF_8.encode(packet.message);
+        // length, QoS, flags, topic length, topic, payload
+        int length = 4 + 1 + 1 + 2 + topic.length + payload.remaining();
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).put((byte) packet.qos).put((byte) ((packet.retain ? 1 : 0) | (packet.dup ? 2 : 0)))
+                .putShort((short) topic.length).put(topic).put(payload);
+        record.flip();
+        try {
+            if (spill == null)
+                spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            while (record.hasRemaining())
+                writePosition += spill.write(record, writePosition);
+        } catch (IOException e) {
+            log.warning("Error spilling message to " + spillFile + ": " + e.getMessage());
+            return false;
+        }
+        spilledTokens.add(packet.token);
+        return true;
+    }
+
+    private OutboundPacket.Publish unspill() {
+        CompletableFuture<Void> token = spilledTokens.poll();
+        try {
+            ByteBuffer record = read(4);
+            int length = record.getInt(record.position());
+            record = read(length);
+            record.getInt();
+            int qos = record.get();
+            int flags = record.get();
+            byte[] topic = new byte[Short.toUnsignedInt(record.getShort())];
+            record.get(topic);
+            byte[] payload = new byte[length - 8 - topic.length];
+            record.get(payload);
+            readPosition += length;
+            if (spilledTokens.isEmpty()) {
+                spill.truncate(0);
+                writePosition = readPosition = 0;
+                readBuffer.position(readBuffer.limit());
+            }
+            return new OutboundPacket.Publish(new String(topic, StandardCharsets.UTF_8), ByteBuffer.wrap(payload),
+                    qos, (flags & 1) != 0, (flags & 2) != 0, token);
+        } catch (IOException e) {
+            log.warning("Error reading spilled message from " + spillFile + ": " + e.getMessage());
+            token.completeExceptionally(e);
+            // the rest of the file cannot be trusted
+            IOException cause = new IOException("Spill file unreadable", e);
+            while ((token = spilledTokens.poll()) != null)
+                token.completeExceptionally(cause);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a buffer whose next length bytes are the file's content at readPosition, filling it as needed.
+     */
+    private ByteBuffer read(int length) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            readBuffer.flip();
+        }
+        // the buffer holds the file from readBuffer's file offset, readPosition - position()
+        if (readBuffer.remaining() < length) {
+            if (readBuffer.capacity() < length)
+                readBuffer = ByteBuffer.allocate(Integer.highestOneBit(length - 1) << 1);
+            readBuffer.clear();
+            long position = readPosition;
+            while (readBuffer.hasRemaining()) {
+                int n = spill.read(readBuffer, position);
+                if (n < 0)
+                    break;
+                position += n;
+            }
+            readBuffer.flip();
+            if (readBuffer.remaining() < length)
+                throw new IOException("Truncated spill file");
+        }
+        return readBuffer;
+    }
+}
@@ -0,0 +1,182 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * OutboundPacket describes a packet queued for the {@link PacketWriter}. Producer threads only build the description;
+ * the bytes are encoded by the single thread currently writing, straight into the connection's write buffer.
+ */
+abstract class OutboundPacket {
+
+    /**
+     * Returns the size of the encoded packet in bytes.
+     */
+    abstract int length();
+
+    /**
+     * Encodes the packet at the position of the buffer, which has at least {@link #length()} bytes remaining.
+     */
+    abstract void encode(ByteBuffer dst);
+
+    /**
+     * Called by the writer once the packet is encoded, before it is written to the socket.
+     *
+     * @param dst   the buffer holding the packet
+     * @param start the position of the packet in the buffer, which ends at the buffer's position
+     * @throws IOException if the packet cannot be recorded
+     */
+    void encoded(ByteBuffer dst, int start) throws IOException {
+    }
+
+    /**
+     * A PUBLISH packet. Its flags are fixed when it is created so that concurrent publishes with different QoS or
+     * retain flags never see each other's settings.
+     */
+    static final class Publish extends OutboundPacket {
+        final String topic;
+        final String message;
+        final ByteBuffer payload;
+        final int qos;
+        final boolean retain, dup;
+        final CompletableFuture<Void> token;
+        int packetId;
+        InFlightStore store;
+
+        private final int topicLength;
+        private final int payloadLength;
+        private final int remaining;
+
+        /**
+         * Constructs a new PUBLISH description. The topic and payload lengths are checked on the calling thread.
+         *
+         * @param topic   the topic name
+         * @param message the payload, encoded in UTF-8
+         * @param qos     the QoS level
+         * @param retain  the retain flag
+         * @param dup     the duplicate flag
+         * @param token   the delivery token of the message
+         */
+        Publish(String topic, String message, int qos, boolean retain, boolean dup, CompletableFuture<Void> token) {
+            this(topic, message, null, MqttEncoder.utf8Length(message), qos, retain, dup, token);
+        }
+
+        /**
+         * Constructs a new PUBLISH description with a binary payload. The bytes between the payload's position and
+         * limit are sent as they are, without being copied: they must not change until the packet is written.
+         *
+         * @param topic   the topic name
+         * @param payload the payload
+         * @param qos     the QoS level
+         * @param retain  the retain flag
+         * @param dup     the duplicate flag
+         * @param token   the delivery token of the message
+         */
+        Publish(String topic, ByteBuffer payload, int qos, boolean retain, boolean dup,
+                CompletableFuture<Void> token) {
+            this(topic, null, payload.slice(), payload.remaining(), qos, retain, dup, token);
+        }
+
+        private Publish(String topic, String message, ByteBuffer payload, int payloadLength, int qos, boolean retain,
+                boolean dup, CompletableFuture<Void> token) {
+            if (qos < 0 || qos > 2)
+                throw new IllegalArgumentException("Invalid QoS " + qos);
+            this.topic = topic;
+            this.message = message;
+            this.payload = payload;
+            this.payloadLength = payloadLength;
+            this.qos = qos;
+            this.retain = retain;
+            this.dup = dup;
+            this.token = token;
+            topicLength = MqttEncoder.stringLength(topic);
+            remaining = MqttEncoder.publishRemainingLength(topicLength, payloadLength, qos);
+        }
+
+        /**
+         * Returns the payload for logging purposes.
+         */
+        String describePayload() {
+            return message != null ? message : "<" + payloadLength + " bytes>";
+        }
+
+        @Override
+        int length() {
+            return 1 + MqttEncoder.remainingLengthSize(remaining) + remaining;
+        }
+
+        @Override
+        void encode(ByteBuffer dst) {
+            MqttEncoder.putPublishHeader(dst, topic, topicLength, remaining, qos, retain, dup, packetId);
+            if (payload != null) {
+                dst.put(payload);
+                payload.rewind();
+            } else {
+                MqttEncoder.putUtf8(dst, message);
+            }
+            // a QoS 0 message is delivered as far as the client is concerned, and its payload can be reused
+            if (qos == 0)
+                token.complete(null);
+        }
+
+        /**
+         * Records a QoS 1 or 2 packet in the in-flight store, if any, so that it can be sent again.
+         */
+        @Override
+        void encoded(ByteBuffer dst, int start) throws IOException {
+            if (store == null)
+                return;
+            ByteBuffer packet = dst.duplicate();
+            packet.limit(dst.position()).position(start);
+            store.put(packetId, packet);
+        }
+    }
+
+    /**
+     * A packet made of a fixed header and a packet identifier: PUBACK, PUBREC, PUBREL or PUBCOMP.
+     */
+    static final class Ack extends OutboundPacket {
+        private final byte type;
+        private final int packetId;
+
+        Ack(byte type, int packetId) {
+            this.type = type;
+            this.packetId = packetId;
+        }
+
+        @Override
+        int length() {
+            return 4;
+        }
+
+        @Override
+        void encode(ByteBuffer dst) {
+            dst.put(type).put((byte) 2).putShort((short) packetId);
+        }
+    }
+
+    /**
+     * A packet already encoded by the caller, e.g. CONNECT or SUBSCRIBE.
+     */
+    static final class Encoded extends OutboundPacket {
+        static final Encoded PINGREQ = new Encoded(new byte[] { MqttEncoder.PINGREQ, 0 });
+        static final Encoded DISCONNECT = new Encoded(new byte[] { MqttEncoder.DISCONNECT, 0 });
+
+        private final byte[] bytes;
+
+        Encoded(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        int length() {
+            return bytes.length;
+        }
+
+        @Override
+        void encode(ByteBuffer dst) {
+            dst.put(bytes);
+        }
+    }
+}
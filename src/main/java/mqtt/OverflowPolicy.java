@@ -0,0 +1,25 @@
+package mqtt;
+
+/**
+ * OverflowPolicy tells what the offline buffer of a {@link MqttBinaryClient} does with a message published while the
+ * buffer is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drops the oldest buffered messages to make room, failing their delivery tokens.
+     */
+    DROP_OLDEST,
+    /**
+     * Drops the new message, failing its delivery token.
+     */
+    DROP_NEWEST,
+    /**
+     * Blocks the publishing thread until the connection is back and the buffer has room, failing its delivery token
+     * after a timeout or when the client disconnects.
+     */
+    BLOCK,
+    /**
+     * Writes the messages that do not fit to a file, read back once the buffered messages have been sent.
+     */
+    SPILL_TO_DISK
+}
@@ -0,0 +1,59 @@
+package mqtt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PacketIdAllocator hands out MQTT packet identifiers in the range 1..65535, guaranteeing that an identifier is never
+ * given twice until it has been released. Free identifiers are kept in a lock-free bitmap of 1024 words; the search
+ * starts at the word of the last allocation, so both operations are O(1) unless nearly every identifier is taken.
+ */
+class PacketIdAllocator extends PacketIdSet {
+    private final AtomicInteger cursor;
+
+    /**
+     * Constructs a new PacketIdAllocator with every identifier free.
+     */
+    PacketIdAllocator() {
+        // identifier 0 is not a valid packet identifier, keep it permanently allocated
+        bits.set(0, 1L);
+        cursor = new AtomicInteger(0);
+    }
+
+    /**
+     * Allocates a free packet identifier.
+     *
+     * @return the packet identifier, or 0 if all 65535 identifiers are in use
+     */
+    int acquire() {
+        int start = cursor.get();
+        for (int i = 0; i < WORDS; i++) {
+            int word = (start + i) & (WORDS - 1);
+            long used = bits.get(word);
+            while (used != -1L) {
+                long free = Long.lowestOneBit(~used);
+                if (bits.compareAndSet(word, used, used | free)) {
+                    if (word != start)
+                        cursor.set(word);
+                    return word * 64 + Long.numberOfTrailingZeros(free);
+                }
+                used = bits.get(word);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gives a packet identifier back so that it can be allocated again.
+     *
+     * @param packetId the packet identifier to release
+     */
+    void release(int packetId) {
+        remove(packetId);
+    }
+
+    @Override
+    void clear() {
+        super.clear();
+        bits.set(0, 1L);
+    }
+}
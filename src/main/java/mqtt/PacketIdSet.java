@@ -0,0 +1,76 @@
+package mqtt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PacketIdSet is a lock-free set of MQTT packet identifiers, stored as a bitmap of 1024 words so that every operation
+ * is a single atomic update.
+ */
+class PacketIdSet {
+    public static final int MAX_ID = 65535;
+    static final int WORDS = (MAX_ID + 1) / 64;
+
+    final AtomicLongArray bits;
+
+    /**
+     * Constructs a new, empty PacketIdSet.
+     */
+    PacketIdSet() {
+        bits = new AtomicLongArray(WORDS);
+    }
+
+    /**
+     * Adds a packet identifier to the set.
+     *
+     * @param packetId the packet identifier, between 1 and 65535
+     * @return false if the identifier was already in the set
+     */
+    boolean add(int packetId) {
+        check(packetId);
+        int word = packetId >>> 6;
+        long mask = 1L << (packetId & 63);
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) != 0)
+                return false;
+        } while (!bits.compareAndSet(word, current, current | mask));
+        return true;
+    }
+
+    /**
+     * Removes a packet identifier from the set.
+     *
+     * @param packetId the packet identifier, between 1 and 65535
+     * @return false if the identifier was not in the set
+     */
+    boolean remove(int packetId) {
+        check(packetId);
+        int word = packetId >>> 6;
+        long mask = 1L << (packetId & 63);
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) == 0)
+                return false;
+        } while (!bits.compareAndSet(word, current, current & ~mask));
+        return true;
+    }
+
+    boolean contains(int packetId) {
+        return (bits.get(packetId >>> 6) & (1L << (packetId & 63))) != 0;
+    }
+
+    /**
+     * Removes every packet identifier.
+     */
+    void clear() {
+        for (int word = 0; word < WORDS; word++)
+            bits.set(word, 0L);
+    }
+
+    private static void check(int packetId) {
+        if (packetId < 1 || packetId > MAX_ID)
+            throw new IllegalArgumentException("Invalid packet identifier " + packetId);
+    }
+}
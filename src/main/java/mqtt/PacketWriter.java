@@ -0,0 +1,301 @@
+package mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * PacketWriter serializes the packets of every thread of a connection onto the socket. Producers add packet
+ * descriptions to a lock-free queue and never wait for each other; whichever thread finds the writer idle becomes the
+ * single writer, encodes every queued packet into one buffer and writes it, while later producers just enqueue. Under
+ * contention packets are therefore naturally batched into few socket writes. A producer writes at most DRAIN_BUDGET
+ * packets before handing the writer over to a writer thread: otherwise, as long as other threads keep queueing, the
+ * producer that became the writer never returns from its own publish. Timed flushes also run on a writer thread, so
+ * that a slow socket does not hold up the flushes of the other connections.
+ * <p>
+ * The buffer is written when it holds flushThreshold bytes, when a packet asks for it (CONNECT, SUBSCRIBE, PINGREQ,
+ * DISCONNECT) or at the latest flushDelay milliseconds after the first buffered packet. With a flushDelay of 0 the
+ * buffer is written as soon as the queue is empty.
+ */
+class PacketWriter {
+    private static final Logger log = Logger.getLogger(PacketWriter.class.getName());
+    private static final int DRAIN_BUDGET = 1024;
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "mqtt-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mqtt-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives the coalesced bytes, typically the socket.
+     */
+    interface Sink {
+        /**
+         * Writes the whole buffer.
+         *
+         * @param packets the bytes to write, between the buffer's position and limit
+         * @throws IOException if an I/O error occurs
+         */
+        void write(ByteBuffer packets) throws IOException;
+    }
+
+    private final Sink sink;
+    private final Consumer<IOException> failed;
+    private final ByteBuffer buffer;
+    private final int flushThreshold;
+    private final long flushDelay;
+    private final ConcurrentLinkedQueue<OutboundPacket> queue;
+    private final AtomicInteger pending;
+    private final AtomicInteger drainWaiters;
+    private final AtomicBoolean flushRequested;
+    private final AtomicBoolean flushScheduled;
+    private volatile IOException failure;
+
+    /**
+     * Constructs a new PacketWriter.
+     *
+     * @param sink           where the coalesced bytes are written
+     * @param failed         called once, by the writing thread, when the sink fails
+     * @param flushThreshold the number of buffered bytes that triggers a flush
+     * @param flushDelay     the maximum time a packet stays buffered, in milliseconds, 0 to write immediately
+     */
+    PacketWriter(Sink sink, Consumer<IOException> failed, int flushThreshold, long flushDelay) {
+        this.sink = sink;
+        this.failed = failed;
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+        buffer = ByteBuffer.allocateDirect(Math.max(flushThreshold, 512));
+        queue = new ConcurrentLinkedQueue<>();
+        pending = new AtomicInteger(0);
+        drainWaiters = new AtomicInteger(0);
+        flushRequested = new AtomicBoolean(false);
+        flushScheduled = new AtomicBoolean(false);
+    }
+
+    /**
+     * Queues a packet and writes it, unless another thread is already writing and will pick it up. Packets queued by
+     * one thread are written in order.
+     *
+     * @param packet the packet to send
+     * @param flush  true to write the packet, and everything queued before it, without waiting for the flush policy
+     * @throws IOException if the connection already failed
+     */
+    void write(OutboundPacket packet, boolean flush) throws IOException {
+        IOException cause = failure;
+        if (cause != null)
+            throw cause;
+        queue.offer(packet);
+        if (flush)
+            flushRequested.set(true);
+        drain();
+    }
+
+    /**
+     * Queues a packet without writing it, so that a batch of packets queued one after the other is encoded into the
+     * same buffer. The batch is written by the next {@link #writeQueued()}, or by any other write meanwhile.
+     *
+     * @param packet the packet to send
+     * @throws IOException if the connection already failed
+     */
+    void enqueue(OutboundPacket packet) throws IOException {
+        IOException cause = failure;
+        if (cause != null)
+            throw cause;
+        queue.offer(packet);
+    }
+
+    /**
+     * Writes the packets queued by {@link #enqueue(OutboundPacket)} according to the flush policy, or lets the thread
+     * currently writing do it.
+     *
+     * @throws IOException if the connection already failed
+     */
+    void writeQueued() throws IOException {
+        IOException cause = failure;
+        if (cause != null)
+            throw cause;
+        drain();
+    }
+
+    /**
+     * Queues a packet like {@link #write(OutboundPacket, boolean)}, but never writes it on the calling thread: a writer
+     * thread does it if no other thread is already writing. For threads that must not block on the socket, such as
+     * timer threads shared by every connection.
+     *
+     * @param packet the packet to send
+     * @param flush  true to write the packet, and everything queued before it, without waiting for the flush policy
+     * @throws IOException if the connection already failed
+     */
+    void writeLater(OutboundPacket packet, boolean flush) throws IOException {
+        IOException cause = failure;
+        if (cause != null)
+            throw cause;
+        queue.offer(packet);
+        if (flush)
+            flushRequested.set(true);
+        drainLater();
+    }
+
+    /**
+     * Writes everything queued or buffered so far, or lets the thread currently writing do it.
+     *
+     * @throws IOException if the connection already failed
+     */
+    void flush() throws IOException {
+        IOException cause = failure;
+        if (cause != null)
+            throw cause;
+        flushRequested.set(true);
+        drain();
+    }
+
+    /**
+     * Waits until the thread currently writing, if any, has written everything queued.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return false if packets were still queued after the timeout, or if the thread was interrupted
+     */
+    boolean awaitDrained(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        drainWaiters.incrementAndGet();
+        try {
+            synchronized (this) {
+                while (pending.get() != 0 || !queue.isEmpty()) {
+                    long wait = deadline - System.nanoTime();
+                    if (failure != null || wait <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            drainWaiters.decrementAndGet();
+        }
+    }
+
+    private void drain() {
+        if (pending.getAndIncrement() == 0)
+            drainLoop(1);
+    }
+
+    /**
+     * Like {@link #drain()}, but writes from a writer thread if this one would have to.
+     */
+    private void drainLater() {
+        if (pending.getAndIncrement() == 0)
+            writers.execute(() -> drainLoop(1));
+    }
+
+    private void drainLoop(int missed) {
+        int budget = DRAIN_BUDGET;
+        do {
+            // once failed, packets stay queued for unsent()
+            if (failure == null) {
+                try {
+                    OutboundPacket packet;
+                    while (budget > 0 && (packet = queue.poll()) != null) {
+                        append(packet);
+                        budget--;
+                    }
+                    if (budget == 0) {
+                        // other threads keep producing: a writer thread goes on so that this caller returns
+                        int remaining = missed;
+                        writers.execute(() -> drainLoop(remaining));
+                        return;
+                    }
+                    if (flushRequested.getAndSet(false) || flushDelay == 0 || buffer.position() >= flushThreshold)
+                        flushBuffer();
+                    else if (buffer.position() > 0 && flushScheduled.compareAndSet(false, true))
+                        timer.schedule(this::timedFlush, flushDelay, TimeUnit.MILLISECONDS);
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(new IOException("Error encoding packet", e));
+                }
+            }
+            missed = pending.addAndGet(-missed);
+        } while (missed != 0);
+        // the writing threads only take the lock when a thread waits in awaitDrained
+        if (drainWaiters.get() > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void append(OutboundPacket packet) throws IOException {
+        int length = packet.length();
+        if (length > buffer.remaining())
+            flushBuffer();
+        if (length > buffer.capacity()) {
+            // larger than the buffer: written through after the buffered packets
+            ByteBuffer large = MqttEncoder.buffer(length);
+            packet.encode(large);
+            packet.encoded(large, 0);
+            large.flip();
+            sink.write(large);
+            return;
+        }
+        int start = buffer.position();
+        packet.encode(buffer);
+        packet.encoded(buffer, start);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        try {
+            sink.write(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void timedFlush() {
+        flushScheduled.set(false);
+        flushRequested.set(true);
+        drainLater();
+    }
+
+    /**
+     * Removes the packets that were queued but never encoded, so that they can be sent on another connection. Packets
+     * already encoded when the connection was lost are not returned.
+     *
+     * @return the unsent packets, in the order they were queued
+     */
+    List<OutboundPacket> unsent() {
+        List<OutboundPacket> packets = new ArrayList<>();
+        OutboundPacket packet;
+        while ((packet = queue.poll()) != null)
+            packets.add(packet);
+        return packets;
+    }
+
+    private void fail(IOException cause) {
+        buffer.clear();
+        if (failure == null) {
+            failure = cause;
+            log.warning("Error writing packets: " + cause.getMessage());
+            failed.accept(cause);
+        }
+    }
+}
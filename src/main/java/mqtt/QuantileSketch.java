@@ -0,0 +1,189 @@
+package mqtt;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * QuantileSketch estimates the quantiles of a stream of readings in bounded memory, after the KLL sketch of Karnin,
+ * Lang and Liberty. Readings are kept in levels of compactors where a reading of level h stands for 2^h readings; when
+ * the sketch is full, the lowest level over its capacity is sorted and every other reading, starting at random with
+ * the first or the second, is promoted to the next level. Level capacities shrink geometrically from the top level
+ * down, so a sketch holds about 3k readings whatever the length of the stream, with a rank error of about 1.7 / k.
+ * <p>
+ * Sketches are mergeable: the sketch of several streams is the union of their levels, compacted again, and is as
+ * accurate as a sketch of the concatenated streams. Updates are synchronized, for a sketch that is normally updated by
+ * a single thread.
+ */
+class QuantileSketch {
+    private static final double DECAY = 2.0 / 3;
+    private static final int MIN_CAPACITY = 2;
+
+    private final int k;
+    private double[][] levels;
+    private int[] sizes;
+    private int[] capacities;
+    private int size;
+    private int capacity;
+    private long count;
+
+    /**
+     * Constructs a new empty QuantileSketch.
+     *
+     * @param k the capacity of the top level, that sets the accuracy
+     */
+    QuantileSketch(int k) {
+        if (k < MIN_CAPACITY)
+            throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY + ", got " + k);
+        this.k = k;
+        levels = new double[][] { new double[8] };
+        sizes = new int[1];
+        updateCapacities();
+    }
+
+    /**
+     * Adds a reading.
+     *
+     * @param value the reading
+     */
+    synchronized void update(double value) {
+        append(0, value);
+        count++;
+        if (size > capacity)
+            compress();
+    }
+
+    /**
+     * Adds the readings of another sketch to this one, leaving the other one unchanged.
+     *
+     * @param other the sketch to merge, with the same k
+     */
+    void merge(QuantileSketch other) {
+        // never locks both sketches at once
+        double[][] otherLevels;
+        int[] otherSizes;
+        long otherCount;
+        synchronized (other) {
+            otherSizes = other.sizes.clone();
+            otherLevels = new double[otherSizes.length][];
+            for (int h = 0; h < otherSizes.length; h++)
+                otherLevels[h] = Arrays.copyOf(other.levels[h], otherSizes[h]);
+            otherCount = other.count;
+        }
+        synchronized (this) {
+            for (int h = 0; h < otherLevels.length; h++) {
+                for (double value : otherLevels[h])
+                    append(h, value);
+            }
+            count += otherCount;
+            while (size > capacity)
+                compress();
+        }
+    }
+
+    /**
+     * Returns the number of readings added.
+     */
+    synchronized long count() {
+        return count;
+    }
+
+    /**
+     * Estimates quantiles.
+     *
+     * @param fractions the fractions of readings below each quantile, between 0 and 1, for example 0.99
+     * @return the estimated quantiles, in the order of the fractions, NaN if the sketch is empty
+     */
+    synchronized double[] quantiles(double... fractions) {
+        double[] quantiles = new double[fractions.length];
+        if (size == 0) {
+            Arrays.fill(quantiles, Double.NaN);
+            return quantiles;
+        }
+        // weight of each reading, sorted by value
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        int n = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                values[n] = levels[h][i];
+                weights[n++] = 1L << h;
+            }
+        }
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        long total = 0;
+        for (long weight : weights)
+            total += weight;
+        for (int q = 0; q < fractions.length; q++) {
+            double rank = Math.max(fractions[q] * total, 1);
+            long seen = 0;
+            quantiles[q] = values[order[size - 1]];
+            for (int i = 0; i < size; i++) {
+                seen += weights[order[i]];
+                if (seen >= rank) {
+                    quantiles[q] = values[order[i]];
+                    break;
+                }
+            }
+        }
+        return quantiles;
+    }
+
+    private void updateCapacities() {
+        capacities = new int[levels.length];
+        capacity = 0;
+        for (int h = 0; h < levels.length; h++) {
+            int depth = levels.length - 1 - h;
+            capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(DECAY, depth)));
+            capacity += capacities[h];
+        }
+    }
+
+    private void append(int level, double value) {
+        if (level >= levels.length) {
+            levels = Arrays.copyOf(levels, level + 1);
+            sizes = Arrays.copyOf(sizes, level + 1);
+            for (int h = 0; h <= level; h++) {
+                if (levels[h] == null)
+                    levels[h] = new double[8];
+            }
+            updateCapacities();
+        }
+        if (sizes[level] == levels[level].length)
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        levels[level][sizes[level]++] = value;
+        size++;
+    }
+
+    /**
+     * Compacts the lowest level over its capacity into the next one.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacities[h]) {
+                compact(h);
+                return;
+            }
+        }
+    }
+
+    private void compact(int level) {
+        double[] items = levels[level];
+        int length = sizes[level];
+        Arrays.sort(items, 0, length);
+        // an odd reading out stays at this level
+        int paired = length & ~1;
+        int offset = ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+        for (int i = offset; i < paired; i += 2)
+            append(level + 1, items[i]);
+        if (paired < length)
+            items[0] = items[length - 1];
+        sizes[level] = length - paired;
+        size -= paired;
+        // give back the memory of a level that grew during a merge
+        if (items.length > 2 * capacities[level] && items.length > 8)
+            levels[level] = Arrays.copyOf(items, Math.max(8, capacities[level]));
+    }
+}
@@ -0,0 +1,155 @@
+package mqtt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SensorAggregator keeps one {@link WindowedStats} per sensor and metric, for example the temperature of the dht22
+ * sensor, all with the same window and slide, and hands their results to a {@link Listener}. Recording a reading of a
+ * stream that was already seen is a map lookup followed by the updates of {@link WindowedStats#record(double, long)}.
+ * <p>
+ * Every result is computed on a single shared scheduler thread, whatever the number of streams: once per slide every
+ * window that ended is closed, and with a count trigger a stream that received that many readings since its last
+ * result also fires an early result for its open window, which the closing result then includes. The threads that
+ * record readings only ever hand a task to the scheduler when a count trigger fires.
+ */
+class SensorAggregator {
+    private static final Logger log = Logger.getLogger(SensorAggregator.class.getName());
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mqtt-windows");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives the results of the windows, always on the scheduler thread.
+     */
+    interface Listener {
+        /**
+         * Called with the statistics of a window that is not empty.
+         *
+         * @param sensor the sensor
+         * @param metric the metric
+         * @param window the statistics of the window
+         * @param early  true if the window is still open, false if it ended
+         */
+        void window(String sensor, String metric, StreamStats.Snapshot window, boolean early);
+    }
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, WindowedStats>> metrics = new ConcurrentHashMap<>();
+    private final long windowMillis;
+    private final long slideMillis;
+    private final int countTrigger;
+    private final Listener listener;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean started;
+
+    /**
+     * Constructs a new SensorAggregator.
+     *
+     * @param windowMillis the length of a window, in milliseconds, a multiple of the slide
+     * @param slideMillis  the time between the ends of two consecutive windows, in milliseconds, equal to the window
+     *                     for tumbling windows
+     * @param countTrigger the number of readings of a stream that fires an early result, 0 for none
+     * @param listener     receives the results
+     */
+    SensorAggregator(long windowMillis, long slideMillis, int countTrigger, Listener listener) {
+        // fails early on an invalid window
+        new WindowedStats(windowMillis, slideMillis);
+        this.windowMillis = windowMillis;
+        this.slideMillis = slideMillis;
+        this.countTrigger = countTrigger;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts closing the windows at the end of every slide.
+     */
+    void start() {
+        if (started)
+            return;
+        started = true;
+        scheduleClose();
+    }
+
+    /**
+     * Records a reading made now.
+     *
+     * @param sensor the sensor that made the reading
+     * @param metric the quantity measured, for example temperature
+     * @param value  the reading
+     */
+    void record(String sensor, String metric, double value) {
+        record(sensor, metric, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a reading made at a given time, in the window of that time. Sensor clocks and delivery may lag, so a
+     * reading up to one slide older than the open window, which already ended, is recorded at the start of the open
+     * window instead; an older one is dropped and counted by {@link #dropped()}. Symmetrically a reading from the
+     * future, from a sensor whose clock is ahead, is recorded as made now.
+     *
+     * @param sensor    the sensor that made the reading
+     * @param metric    the quantity measured, for example temperature
+     * @param value     the reading
+     * @param timestamp the time of the reading, in milliseconds since the epoch
+     */
+    void record(String sensor, String metric, double value, long timestamp) {
+        long now = System.currentTimeMillis();
+        long openStart = (now / slideMillis + 1) * slideMillis - windowMillis;
+        if (timestamp < openStart - slideMillis) {
+            dropped.incrementAndGet();
+            if (log.isLoggable(Level.FINE))
+                log.fine("Dropping a " + metric + " reading of " + sensor + " made " + (now - timestamp) + " ms ago");
+            return;
+        }
+        ConcurrentHashMap<String, WindowedStats> sensors = metrics.get(metric);
+        if (sensors == null)
+            sensors = metrics.computeIfAbsent(metric, m -> new ConcurrentHashMap<>());
+        WindowedStats stats = sensors.get(sensor);
+        if (stats == null)
+            stats = sensors.computeIfAbsent(sensor, s -> new WindowedStats(windowMillis, slideMillis));
+        int unreported = stats.record(value, Math.min(Math.max(timestamp, openStart), now));
+        if (countTrigger > 0 && unreported == countTrigger) {
+            WindowedStats triggered = stats;
+            scheduler.execute(() -> report(sensor, metric, triggered.current(System.currentTimeMillis()), true));
+        }
+    }
+
+    /**
+     * Returns the number of readings dropped because they were too old.
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    private void scheduleClose() {
+        // rescheduled every time rather than at a fixed rate, so that it stays aligned on the wall clock
+        scheduler.schedule(this::close, slideMillis - System.currentTimeMillis() % slideMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void close() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ConcurrentHashMap<String, WindowedStats>> metric : metrics.entrySet()) {
+            for (Map.Entry<String, WindowedStats> sensor : metric.getValue().entrySet())
+                report(sensor.getKey(), metric.getKey(), sensor.getValue().close(now), false);
+        }
+        scheduleClose();
+    }
+
+    private void report(String sensor, String metric, StreamStats.Snapshot window, boolean early) {
+        if (window == null || window.count == 0)
+            return;
+        try {
+            listener.window(sensor, metric, window, early);
+        } catch (RuntimeException e) {
+            log.warning("Error reporting the " + metric + " of " + sensor + ": " + e);
+        }
+    }
+}
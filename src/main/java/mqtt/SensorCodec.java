@@ -0,0 +1,194 @@
+package mqtt;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SensorCodec encodes the payloads exchanged by the sensor clients in a compact binary form, big-endian like MQTT
+ * itself. A payload starts with its type and is followed by:
+ * <ul>
+ * <li>READINGS: one or more readings, each made of the timestamp in milliseconds since the epoch (8 bytes), the value
+ * as a double (8 bytes) and the sensor id as an MQTT string (2 bytes of length and the UTF-8 bytes)</li>
+ * <li>SUMMARY: the statistics of a window of readings of one sensor, made of the timestamp (8 bytes), the number of
+ * readings (8 bytes), the mean, p50, p95 and p99 as doubles (4 * 8 bytes) and the sensor id</li>
+ * </ul>
+ * Values are copied bit for bit, so decoding never parses text and never loses precision.
+ */
+final class SensorCodec {
+    static final byte READINGS = 1;
+    static final byte SUMMARY = 2;
+
+    /**
+     * Receives the decoded readings.
+     */
+    interface ReadingHandler {
+        void reading(String sensor, long timestamp, double value);
+    }
+
+    /**
+     * The statistics of a window of readings.
+     */
+    static final class Summary {
+        final String sensor;
+        final long timestamp;
+        final long count;
+        final double mean;
+        final double p50;
+        final double p95;
+        final double p99;
+
+        Summary(String sensor, long timestamp, long count, double mean, double p50, double p95, double p99) {
+            this.sensor = sensor;
+            this.timestamp = timestamp;
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+
+        @Override
+        public String toString() {
+            return sensor + ": mean " + mean + ", p50 " + p50 + ", p95 " + p95 + ", p99 " + p99 + " (" + count
+                    + " readings)";
+        }
+    }
+
+    /**
+     * Builds a payload of several readings, to publish them in one message.
+     */
+    static final class Batch {
+        private ByteBuffer buffer = ByteBuffer.allocate(64).put(READINGS);
+
+        /**
+         * Adds a reading to the batch.
+         *
+         * @param sensor    the sensor id
+         * @param timestamp the time of the reading, in milliseconds since the epoch
+         * @param value     the reading
+         * @return this batch
+         * @throws IllegalArgumentException if the sensor id is longer than 65535 bytes in UTF-8
+         */
+        Batch add(String sensor, long timestamp, double value) {
+            // checked to fit the unsigned short length prefix
+            int sensorLength = MqttEncoder.stringLength(sensor);
+            int length = 18 + sensorLength;
+            if (buffer.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+            buffer.putLong(timestamp).putDouble(value).putShort((short) sensorLength);
+            MqttEncoder.putUtf8(buffer, sensor);
+            return this;
+        }
+
+        /**
+         * Returns the payload of the readings added so far.
+         */
+        byte[] toByteArray() {
+            byte[] payload = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, payload, 0, payload.length);
+            return payload;
+        }
+    }
+
+    private SensorCodec() {
+    }
+
+    /**
+     * Encodes a single reading.
+     *
+     * @param sensor    the sensor id
+     * @param timestamp the time of the reading, in milliseconds since the epoch
+     * @param value     the reading
+     * @return the payload
+     * @throws IllegalArgumentException if the sensor id is longer than 65535 bytes in UTF-8
+     */
+    static byte[] encodeReading(String sensor, long timestamp, double value) {
+        return new Batch().add(sensor, timestamp, value).toByteArray();
+    }
+
+    /**
+     * Decodes every reading of a READINGS payload.
+     *
+     * @param payload the payload
+     * @param handler called with each reading, in order
+     * @return the number of readings
+     * @throws IllegalArgumentException if the payload is not a well-formed READINGS payload
+     */
+    static int decodeReadings(byte[] payload, ReadingHandler handler) {
+        ByteBuffer buffer = wrap(payload, READINGS);
+        int count = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                long timestamp = buffer.getLong();
+                double value = buffer.getDouble();
+                handler.reading(sensor(buffer), timestamp, value);
+                count++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated reading after " + count + " readings");
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the statistics of a window of readings.
+     *
+     * @param summary the statistics
+     * @return the payload
+     * @throws IllegalArgumentException if the sensor id is longer than 65535 bytes in UTF-8
+     */
+    static byte[] encodeSummary(Summary summary) {
+        // checked to fit the unsigned short length prefix
+        int sensorLength = MqttEncoder.stringLength(summary.sensor);
+        ByteBuffer buffer = ByteBuffer.allocate(51 + sensorLength);
+        buffer.put(SUMMARY).putLong(summary.timestamp).putLong(summary.count).putDouble(summary.mean);
+        buffer.putDouble(summary.p50).putDouble(summary.p95).putDouble(summary.p99);
+        buffer.putShort((short) sensorLength);
+        MqttEncoder.putUtf8(buffer, summary.sensor);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a SUMMARY payload.
+     *
+     * @param payload the payload
+     * @return the statistics
+     * @throws IllegalArgumentException if the payload is not a well-formed SUMMARY payload
+     */
+    static Summary decodeSummary(byte[] payload) {
+        ByteBuffer buffer = wrap(payload, SUMMARY);
+        try {
+            long timestamp = buffer.getLong();
+            long count = buffer.getLong();
+            double mean = buffer.getDouble();
+            double p50 = buffer.getDouble();
+            double p95 = buffer.getDouble();
+            double p99 = buffer.getDouble();
+            return new Summary(sensor(buffer), timestamp, count, mean, p50, p95, p99);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated summary");
+        }
+    }
+
+    private static ByteBuffer wrap(byte[] payload, byte type) {
+        if (payload.length == 0 || payload[0] != type)
+            throw new IllegalArgumentException("Expected a payload of type " + type + ", got "
+                    + (payload.length == 0 ? "an empty payload" : "type " + payload[0]));
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(1);
+        return buffer;
+    }
+
+    private static String sensor(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        String sensor = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return sensor;
+    }
+}
@@ -0,0 +1,101 @@
+package mqtt;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StreamStats accumulates the count, sum, minimum and maximum of a stream of readings without locks or boxing. Every
+ * field is a striped accumulator, so threads recording concurrently update different cells instead of contending on
+ * one value, and no reading is ever lost. A reading recorded while {@link #snapshot()} runs may be counted in some
+ * fields of the snapshot and not in others.
+ */
+class StreamStats {
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+    private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+    /**
+     * Records a reading.
+     *
+     * @param value the reading
+     */
+    void record(double value) {
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the statistics of the readings recorded so far.
+     */
+    Snapshot snapshot() {
+        return new Snapshot(count.sum(), sum.sum(), min.get(), max.get());
+    }
+
+    /**
+     * The statistics of a set of readings, with their quantiles when they were sketched.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+        final long count;
+        final double sum;
+        final double min;
+        final double max;
+        final QuantileSketch sketch;
+
+        Snapshot(long count, double sum, double min, double max) {
+            this(count, sum, min, max, null);
+        }
+
+        Snapshot(long count, double sum, double min, double max, QuantileSketch sketch) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.sketch = sketch;
+        }
+
+        /**
+         * Returns the mean of the readings, or NaN if there are none.
+         */
+        double mean() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        /**
+         * Estimates quantiles of the readings.
+         *
+         * @param fractions the fractions of readings below each quantile, between 0 and 1
+         * @return the estimated quantiles, NaN if there are no readings or they were not sketched
+         */
+        double[] quantiles(double... fractions) {
+            if (sketch != null)
+                return sketch.quantiles(fractions);
+            double[] quantiles = new double[fractions.length];
+            Arrays.fill(quantiles, Double.NaN);
+            return quantiles;
+        }
+
+        /**
+         * Returns the statistics of the readings of both snapshots, without quantiles.
+         */
+        Snapshot merge(Snapshot other) {
+            return new Snapshot(count + other.count, sum + other.sum, Math.min(min, other.min),
+                    Math.max(max, other.max));
+        }
+
+        @Override
+        public String toString() {
+            String stats = "count " + count + ", mean " + mean() + ", min " + min + ", max " + max;
+            if (sketch == null)
+                return stats;
+            double[] quantiles = sketch.quantiles(0.5, 0.95, 0.99);
+            return stats + ", p50 " + quantiles[0] + ", p95 " + quantiles[1] + ", p99 " + quantiles[2];
+        }
+    }
+}
@@ -3,13 +3,13 @@ package mqtt;
 import java.util.logging.Logger;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-public class SubscribingMqttClient implements MqttCallback {
+public class SubscribingMqttClient implements MqttCallbackExtended {
     private MqttClient client;
     private String topic;
     private String clientId;
@@ -26,7 +26,7 @@ public class SubscribingMqttClient implements MqttCallback {
 		String topic        = "labs/bin";
 	    String messageContent = "Message from my Lab's Paho Mqtt Client";
 	    int qos             = 0;
-	    String brokerURI       = "tcp://137.194.140.22:1883";
+	    String brokerURI       = System.getProperty("mqtt.broker", "tcp://137.194.140.22:1883");
 	    String clientId     = "myClientID_Sub";
 	    //MemoryPersistence persistence = new MemoryPersistence();
 
@@ -47,6 +47,7 @@ public class SubscribingMqttClient implements MqttCallback {
 	    	MqttConnectOptions connectOptions = new MqttConnectOptions();
 	    	//clean session
 	    	connectOptions.setCleanSession(false);
+	    	connectOptions.setAutomaticReconnect(true);
 
 
             client.connect(connectOptions);
@@ -56,8 +57,22 @@ public class SubscribingMqttClient implements MqttCallback {
 
     @Override
     public void connectionLost(Throwable cause) {
-        log.info("Connection lost because: " + cause);
-        System.exit(1);
+        log.warning("Connection lost because: " + cause + ", reconnecting");
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        if (!reconnect)
+            return;
+        log.info("Reconnected to " + serverURI);
+        // subscribe blocks until the SUBACK, which the callback thread itself would have to receive
+        new Thread(() -> {
+            try {
+                client.subscribe(topic);
+            } catch (MqttException e) {
+                log.warning("Error subscribing again to " + topic + ": " + e.getMessage());
+            }
+        }, "resubscribe").start();
     }
 
     @Override
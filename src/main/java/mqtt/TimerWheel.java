@@ -0,0 +1,143 @@
+package mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TimerWheel runs delayed tasks from a single thread, with a precision of one tick. Tasks are hashed by deadline into
+ * a ring of buckets; each tick the thread only looks at one bucket, so scheduling, cancelling and expiring are O(1)
+ * whatever the number of timers, which lets one thread serve the keep-alive of thousands of connections. A task whose
+ * deadline is more than one revolution away stays in its bucket for as many extra rounds.
+ * <p>
+ * Tasks run on the timer thread and must not block.
+ */
+final class TimerWheel implements Runnable {
+    private static final Logger log = Logger.getLogger(TimerWheel.class.getName());
+    private static final TimerWheel shared = new TimerWheel(100, 512, "mqtt-timer");
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running, if it has not run yet. The timeout is removed when its bucket is next
+         * visited.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Timeout>[] wheel;
+    private final ConcurrentLinkedQueue<Timeout> added;
+    private final long start;
+
+    /**
+     * Returns the wheel shared by every connection, ticking every 100 ms.
+     */
+    static TimerWheel shared() {
+        return shared;
+    }
+
+    /**
+     * Constructs a new TimerWheel and starts its daemon thread.
+     *
+     * @param tickMillis the duration of a tick in milliseconds
+     * @param buckets    the number of buckets, rounded up to a power of two
+     * @param name       the name of the thread
+     */
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickMillis, int buckets, String name) {
+        int size = Integer.highestOneBit(Math.max(buckets, 2) - 1) << 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        mask = size - 1;
+        wheel = (List<Timeout>[]) new List<?>[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new ArrayList<>();
+        added = new ConcurrentLinkedQueue<>();
+        start = System.nanoTime();
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task  the task, run on the timer thread
+     * @param delay the delay in milliseconds
+     * @return the timeout, to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)));
+        added.offer(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        long tick = 0;
+        while (true) {
+            long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // daemon thread, keep ticking
+                }
+                continue;
+            }
+            transferAdded(tick);
+            expire(wheel[(int) (tick & mask)], System.nanoTime());
+            tick++;
+        }
+    }
+
+    private void transferAdded(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled)
+                continue;
+            long ticks = Math.max((timeout.deadline - start + tickNanos - 1) / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket, long now) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled)
+                continue;
+            if (timeout.rounds > 0 || timeout.deadline - now > 0) {
+                if (timeout.rounds > 0)
+                    timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Error in timer task", e);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+}
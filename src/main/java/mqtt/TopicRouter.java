@@ -0,0 +1,185 @@
+package mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * TopicRouter finds the handlers whose topic filter matches a topic. Filters are stored in a trie with one level per
+ * topic level, where the single-level wildcard {@code +} and the multi-level wildcard {@code #} are extra branches of
+ * their parent. Matching a topic walks the trie level by level, so its cost depends on the depth of the topic and not
+ * on the number of filters. Filters may be added while messages are routed.
+ *
+ * @param <H> the type of the handlers, the client's {@link MqttPayloadHandler} or the broker's subscriptions
+ */
+class TopicRouter<H> {
+
+    private static class Node<H> {
+        final ConcurrentHashMap<String, Node<H>> children = new ConcurrentHashMap<>();
+        final CopyOnWriteArrayList<H> handlers = new CopyOnWriteArrayList<>();
+        volatile Node<H> singleLevel, multiLevel;
+    }
+
+    private final Node<H> root = new Node<>();
+
+    /**
+     * Registers a handler for a topic filter.
+     *
+     * @param filter  the topic filter, possibly containing {@code +} and {@code #} wildcards
+     * @param handler the handler
+     * @throws IllegalArgumentException if the filter is not a valid topic filter
+     */
+    void add(String filter, H handler) {
+        validate(filter);
+        node(filter).handlers.add(handler);
+    }
+
+    /**
+     * Removes every handler registered for a topic filter.
+     *
+     * @param filter the topic filter, exactly as it was added
+     */
+    void remove(String filter) {
+        Node<H> node = find(filter);
+        if (node != null)
+            node.handlers.clear();
+    }
+
+    /**
+     * Removes one handler registered for a topic filter.
+     *
+     * @param filter  the topic filter, exactly as it was added
+     * @param handler the handler
+     */
+    void remove(String filter, H handler) {
+        Node<H> node = find(filter);
+        if (node != null)
+            node.handlers.remove(handler);
+    }
+
+    private Node<H> find(String filter) {
+        Node<H> node = root;
+        int start = 0;
+        while (node != null && start <= filter.length()) {
+            int end = levelEnd(filter, start);
+            String level = filter.substring(start, end);
+            node = level.equals("+") ? node.singleLevel
+                    : level.equals("#") ? node.multiLevel : node.children.get(level);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Calls the action for every handler whose filter matches the topic.
+     *
+     * @param topic  the topic name, without wildcards
+     * @param action the action
+     * @return the number of handlers called
+     */
+    int match(String topic, Consumer<? super H> action) {
+        return match(root, topic, 0, action);
+    }
+
+    private int match(Node<H> node, String topic, int start, Consumer<? super H> action) {
+        // topics starting with $ are not matched by wildcards in the first level
+        boolean wildcards = start > 0 || !topic.startsWith("$");
+        int matched = 0;
+        Node<H> multiLevel = node.multiLevel;
+        if (multiLevel != null && wildcards)
+            matched += notify(multiLevel, action);
+        if (start > topic.length())
+            return matched + notify(node, action);
+        int end = levelEnd(topic, start);
+        Node<H> child = node.children.get(topic.substring(start, end));
+        if (child != null)
+            matched += match(child, topic, end + 1, action);
+        Node<H> singleLevel = node.singleLevel;
+        if (singleLevel != null && wildcards)
+            matched += match(singleLevel, topic, end + 1, action);
+        return matched;
+    }
+
+    private int notify(Node<H> node, Consumer<? super H> action) {
+        int matched = 0;
+        for (H handler : node.handlers) {
+            action.accept(handler);
+            matched++;
+        }
+        return matched;
+    }
+
+    private Node<H> node(String filter) {
+        Node<H> node = root;
+        int start = 0;
+        while (start <= filter.length()) {
+            int end = levelEnd(filter, start);
+            String level = filter.substring(start, end);
+            Node<H> parent = node;
+            if (level.equals("+")) {
+                synchronized (parent) {
+                    if (parent.singleLevel == null)
+                        parent.singleLevel = new Node<>();
+                    node = parent.singleLevel;
+                }
+            } else if (level.equals("#")) {
+                synchronized (parent) {
+                    if (parent.multiLevel == null)
+                        parent.multiLevel = new Node<>();
+                    node = parent.multiLevel;
+                }
+            } else {
+                node = parent.children.computeIfAbsent(level, l -> new Node<>());
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Tells whether a topic matches a topic filter, with the same rules as {@link #match(String, Consumer)}.
+     *
+     * @param filter the topic filter
+     * @param topic  the topic name
+     * @return true if the topic matches
+     */
+    static boolean matches(String filter, String topic) {
+        if (topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#")))
+            return false;
+        int f = 0, t = 0;
+        while (f <= filter.length()) {
+            int filterEnd = levelEnd(filter, f);
+            String level = filter.substring(f, filterEnd);
+            if (level.equals("#"))
+                return true;
+            if (t > topic.length())
+                return false;
+            int topicEnd = levelEnd(topic, t);
+            if (!level.equals("+") && !level.equals(topic.substring(t, topicEnd)))
+                return false;
+            f = filterEnd + 1;
+            t = topicEnd + 1;
+        }
+        return t > topic.length();
+    }
+
+    private static int levelEnd(String topic, int start) {
+        int end = topic.indexOf('/', start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    static void validate(String filter) {
+        if (filter.isEmpty())
+            throw new IllegalArgumentException("Empty topic filter");
+        int start = 0;
+        while (start <= filter.length()) {
+            int end = levelEnd(filter, start);
+            String level = filter.substring(start, end);
+            if (level.equals("#") && end != filter.length())
+                throw new IllegalArgumentException("# must be the last level of " + filter);
+            if (level.length() > 1 && (level.indexOf('#') >= 0 || level.indexOf('+') >= 0))
+                throw new IllegalArgumentException("Wildcards must occupy a whole level in " + filter);
+            start = end + 1;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package mqtt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * WindowedStats aggregates a stream of readings over a time window that moves forward by a fixed slide: a tumbling
+ * window when the slide equals the window, a sliding window when the window is a multiple of the slide. Readings are
+ * pre-aggregated into one {@link StreamStats} bucket per slide, kept in a ring of window / slide + 1 buckets, so the
+ * memory used does not depend on the rate of readings and closing a window merges a few buckets instead of replaying
+ * readings. The extra bucket is the one being filled while the window that just ended is read. Every bucket also
+ * keeps a {@link QuantileSketch} of its readings, of at most about 3 * SKETCH_K readings, which are merged into the
+ * quantiles of the window.
+ * <p>
+ * A bucket is recycled by replacing it with a fresh one, without a lock. Recording updates the statistics of the bucket
+ * lock-free, but its quantile sketch under the sketch's own lock, held only for the update: threads recording the same
+ * stream at once contend on it, but not with threads recording other streams. Readings older than the ring are dropped,
+ * and a reading made just before the end of a window may miss its result if it is recorded while the window is closed.
+ * The window that is still open can also be read before it ends, to fire early results.
+ */
+class WindowedStats {
+    static final int SKETCH_K = 128;
+
+    private final long slideMillis;
+    private final int slides;
+    private final AtomicReferenceArray<Bucket> buckets;
+    private final AtomicInteger unreported = new AtomicInteger();
+    private long lastClosed = Long.MIN_VALUE;
+
+    /**
+     * Constructs a new WindowedStats.
+     *
+     * @param windowMillis the length of a window, in milliseconds, a multiple of the slide
+     * @param slideMillis  the time between the ends of two consecutive windows, in milliseconds
+     */
+    WindowedStats(long windowMillis, long slideMillis) {
+        if (slideMillis <= 0 || windowMillis < slideMillis || windowMillis % slideMillis != 0)
+            throw new IllegalArgumentException(
+                    "The window (" + windowMillis + " ms) must be a multiple of the slide (" + slideMillis + " ms)");
+        this.slideMillis = slideMillis;
+        slides = (int) (windowMillis / slideMillis);
+        buckets = new AtomicReferenceArray<>(slides + 1);
+    }
+
+    /**
+     * Records a reading.
+     *
+     * @param value the reading
+     * @param now   the time of the reading, in milliseconds since the epoch
+     * @return the number of readings recorded since the last result, this one included, or -1 if the reading was
+     *         dropped because its bucket was already recycled for a later slide
+     */
+    int record(double value, long now) {
+        long index = now / slideMillis;
+        int slot = slot(index);
+        Bucket bucket = buckets.get(slot);
+        while (bucket == null || bucket.index != index) {
+            if (bucket != null && bucket.index > index)
+                return -1;
+            Bucket fresh = new Bucket(index);
+            if (buckets.compareAndSet(slot, bucket, fresh))
+                bucket = fresh;
+            else
+                bucket = buckets.get(slot);
+        }
+        bucket.stats.record(value);
+        bucket.sketch.update(value);
+        return unreported.incrementAndGet();
+    }
+
+    /**
+     * Returns the statistics of the last window that ended by now, unless it was already returned. Windows that ended
+     * while this was not called are skipped. Must not be called by several threads at once, nor at the same time as
+     * {@link #current(long)}.
+     *
+     * @param now the current time, in milliseconds since the epoch
+     * @return the statistics of the window, possibly empty, or null if no window ended since the last call
+     */
+    StreamStats.Snapshot close(long now) {
+        long end = now / slideMillis;
+        if (end <= lastClosed)
+            return null;
+        lastClosed = end;
+        return window(end);
+    }
+
+    /**
+     * Returns the statistics of the window that ends at the next slide, as they stand now.
+     *
+     * @param now the current time, in milliseconds since the epoch
+     * @return the statistics of the open window, possibly empty
+     */
+    StreamStats.Snapshot current(long now) {
+        return window(now / slideMillis + 1);
+    }
+
+    private StreamStats.Snapshot window(long end) {
+        unreported.set(0);
+        StreamStats.Snapshot window = StreamStats.Snapshot.EMPTY;
+        QuantileSketch sketch = new QuantileSketch(SKETCH_K);
+        for (long index = end - slides; index < end; index++) {
+            Bucket bucket = buckets.get(slot(index));
+            if (bucket != null && bucket.index == index) {
+                window = window.merge(bucket.stats.snapshot());
+                sketch.merge(bucket.sketch);
+            }
+        }
+        return new StreamStats.Snapshot(window.count, window.sum, window.min, window.max, sketch);
+    }
+
+    private int slot(long index) {
+        return (int) (index % buckets.length());
+    }
+
+    private static final class Bucket {
+        final long index;
+        final StreamStats stats = new StreamStats();
+        final QuantileSketch sketch = new QuantileSketch(SKETCH_K);
+
+        Bucket(long index) {
+            this.index = index;
+        }
+    }
+}
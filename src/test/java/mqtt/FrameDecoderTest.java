@@ -0,0 +1,92 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+    private final List<Integer> headers = new ArrayList<>();
+    private final List<byte[]> bodies = new ArrayList<>();
+    private final FrameDecoder.FrameHandler handler = (header, body) -> {
+        headers.add(header);
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        bodies.add(bytes);
+    };
+
+    private static byte[] frame(int header, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(5 + length);
+        frame.put((byte) header);
+        MqttEncoder.putRemainingLength(frame, length);
+        for (int i = 0; i < length; i++)
+            frame.put((byte) i);
+        byte[] bytes = new byte[frame.position()];
+        frame.flip();
+        frame.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    void decodesCoalescedFrames() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(1024, MqttEncoder.MAX_LENGTH);
+        decoder.buffer().put(frame(0x40, 2)).put(frame(0xD0, 0)).put(frame(0x30, 200));
+        decoder.decode(handler);
+        assertEquals(3, headers.size());
+        assertEquals(0x40, headers.get(0));
+        assertEquals(0xD0, headers.get(1));
+        assertEquals(0, bodies.get(1).length);
+        assertArrayEquals(new byte[] { 0, 1 }, bodies.get(0));
+        assertEquals(200, bodies.get(2).length);
+        assertEquals(0, decoder.buffer().position());
+    }
+
+    @Test
+    void keepsAPartialFrameForTheNextRead() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(1024, MqttEncoder.MAX_LENGTH);
+        byte[] frame = frame(0x30, 300);
+        // split inside the two-byte Remaining Length, then inside the body
+        int[] splits = { 2, 100, frame.length };
+        int from = 0;
+        for (int split : splits) {
+            decoder.buffer().put(frame, from, split - from);
+            decoder.decode(handler);
+            assertEquals(split == frame.length ? 1 : 0, headers.size());
+            from = split;
+        }
+        assertEquals(300, bodies.get(0).length);
+        assertEquals((byte) 299, bodies.get(0)[299]);
+    }
+
+    @Test
+    void growsForAFrameLargerThanTheBuffer() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(64, MqttEncoder.MAX_LENGTH);
+        byte[] frame = frame(0x30, 1000);
+        int from = 0;
+        while (from < frame.length) {
+            int length = Math.min(decoder.buffer().remaining(), frame.length - from);
+            decoder.buffer().put(frame, from, length);
+            from += length;
+            decoder.decode(handler);
+        }
+        assertEquals(1, headers.size());
+        assertEquals(1000, bodies.get(0).length);
+    }
+
+    @Test
+    void rejectsMalformedAndOversizedFrames() {
+        FrameDecoder decoder = new FrameDecoder(64, MqttEncoder.MAX_LENGTH);
+        decoder.buffer().put(new byte[] { 0x30, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1 });
+        assertThrows(IOException.class, () -> decoder.decode(handler));
+
+        FrameDecoder small = new FrameDecoder(64, 10);
+        small.buffer().put(frame(0x30, 11));
+        assertThrows(IOException.class, () -> small.decode(handler));
+    }
+}
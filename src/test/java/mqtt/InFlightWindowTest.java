@@ -0,0 +1,111 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+class InFlightWindowTest {
+
+    @Test
+    void boundsTheNumberOfPacketsInFlight() throws InterruptedException {
+        InFlightWindow window = new InFlightWindow(2, new PacketIdAllocator());
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        int a = window.acquire(first);
+        int b = window.acquire(new CompletableFuture<>());
+        assertNotEquals(a, b);
+        assertFalse(window.tryReserve());
+        assertTrue(window.release(a));
+        assertTrue(first.isDone());
+        assertFalse(window.release(a));
+        assertTrue(window.tryReserve());
+        window.unreserve();
+        assertEquals(1, window.inFlight());
+    }
+
+    @Test
+    void identifiersStayUniqueAsPacketsComeAndGo() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        InFlightWindow window = new InFlightWindow(10, packetIds);
+        List<Integer> inFlight = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            if (inFlight.size() < 10 && (inFlight.isEmpty() || random.nextBoolean())) {
+                assertTrue(window.tryReserve());
+                int packetId = window.register(new CompletableFuture<>());
+                assertFalse(inFlight.contains(packetId));
+                inFlight.add(packetId);
+            } else {
+                int packetId = inFlight.remove(random.nextInt(inFlight.size()));
+                assertTrue(window.isInFlight(packetId));
+                assertTrue(window.release(packetId));
+            }
+        }
+        assertEquals(inFlight.size(), window.inFlight());
+        for (int packetId : inFlight)
+            assertTrue(packetIds.contains(packetId));
+    }
+
+    @Test
+    void tracksTheSecondPhaseOfQos2() throws InterruptedException {
+        InFlightWindow window = new InFlightWindow(4, new PacketIdAllocator());
+        int packetId = window.acquire(new CompletableFuture<>());
+        assertFalse(window.isReleased(packetId));
+        assertTrue(window.markReleased(packetId));
+        assertTrue(window.isReleased(packetId));
+        window.release(packetId);
+        assertFalse(window.isReleased(packetId));
+        assertFalse(window.markReleased(packetId));
+    }
+
+    @Test
+    void restoresIdentifiersSharingASlot() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        InFlightWindow window = new InFlightWindow(4, packetIds);
+        int[] restored = { 1, 9, 17, 33 };
+        for (int packetId : restored)
+            window.restore(packetId, new CompletableFuture<>());
+        for (int packetId : restored)
+            assertTrue(window.isInFlight(packetId));
+        assertFalse(window.tryReserve());
+        assertThrows(IllegalStateException.class, () -> window.restore(1, new CompletableFuture<>()));
+        assertTrue(window.release(17));
+        assertFalse(window.isInFlight(17));
+        assertTrue(window.isInFlight(33));
+    }
+
+    @Test
+    void failAllCompletesEveryTokenExceptionally() throws InterruptedException {
+        InFlightWindow window = new InFlightWindow(3, new PacketIdAllocator());
+        List<CompletableFuture<Void>> tokens = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<Void> token = new CompletableFuture<>();
+            tokens.add(token);
+            window.acquire(token);
+        }
+        IOException cause = new IOException("lost");
+        window.failAll(cause);
+        assertEquals(0, window.inFlight());
+        for (CompletableFuture<Void> token : tokens) {
+            ExecutionException e = assertThrows(ExecutionException.class, token::get);
+            assertEquals(cause, e.getCause());
+        }
+    }
+
+    @Test
+    void rejectsInvalidSizes() {
+        assertThrows(IllegalArgumentException.class, () -> new InFlightWindow(0, new PacketIdAllocator()));
+        assertThrows(IllegalArgumentException.class,
+                () -> new InFlightWindow(InFlightWindow.MAX_SIZE + 1, new PacketIdAllocator()));
+    }
+}
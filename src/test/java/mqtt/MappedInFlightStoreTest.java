@@ -0,0 +1,125 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedInFlightStoreTest {
+    @TempDir
+    Path dir;
+
+    private static ByteBuffer packet(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the stored messages by packet identifier, in order, with null for released ones.
+     */
+    private static Map<Integer, String> contents(InFlightStore store) throws IOException {
+        Map<Integer, String> contents = new LinkedHashMap<>();
+        store.forEach((packetId, packet) -> {
+            String content = null;
+            if (packet != null) {
+                byte[] bytes = new byte[packet.remaining()];
+                packet.get(bytes);
+                content = new String(bytes, StandardCharsets.UTF_8);
+            }
+            contents.put(packetId, content);
+        });
+        return contents;
+    }
+
+    @Test
+    void recoversMessagesInOrder() throws IOException {
+        Path file = dir.resolve("inflight.log");
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            store.put(3, packet("three"));
+            store.put(1, packet("one"));
+            store.put(2, packet("two"));
+            store.release(1);
+            store.remove(2);
+            store.put(3, packet("three again"));
+        }
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            Map<Integer, String> contents = contents(store);
+            assertEquals(2, store.size());
+            assertEquals("[1, 3]", contents.keySet().toString());
+            assertNull(contents.get(1));
+            assertEquals("three again", contents.get(3));
+        }
+    }
+
+    @Test
+    void restartsTheLogOnceEverythingIsAcknowledged() throws IOException {
+        Path file = dir.resolve("inflight.log");
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            store.put(1, packet("one"));
+            store.remove(1);
+            store.put(2, packet("two"));
+        }
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            assertEquals("{2=two}", contents(store).toString());
+        }
+    }
+
+    @Test
+    void compactsAndGrowsAFullLog() throws IOException {
+        Path file = dir.resolve("inflight.log");
+        String payload = "0123456789012345678901234567890123456789";
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 256)) {
+            for (int i = 1; i <= 1000; i++) {
+                store.put(i, packet(payload + i));
+                // keep the ten most recent messages in flight
+                if (i > 10)
+                    store.remove(i - 10);
+            }
+            for (int i = 1; i <= 200; i++)
+                store.put(10000 + i, packet(payload));
+        }
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 256)) {
+            Map<Integer, String> contents = contents(store);
+            assertEquals(210, contents.size());
+            assertEquals(payload + 991, contents.get(991));
+            assertEquals(payload, contents.get(10200));
+        }
+    }
+
+    @Test
+    void ignoresARecordInterruptedBeforeItsLength() throws IOException {
+        Path file = dir.resolve("inflight.log");
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            store.put(1, packet("one"));
+        }
+        // a crash while appending: type and packet identifier written, but not the length
+        int end = 7 + 3;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 0, 2, 't', 'w', 'o' }), end + 4);
+        }
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            assertEquals("{1=one}", contents(store).toString());
+        }
+    }
+
+    @Test
+    void clearEmptiesTheLog() throws IOException {
+        Path file = dir.resolve("inflight.log");
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            store.put(1, packet("one"));
+            store.clear();
+        }
+        try (MappedInFlightStore store = new MappedInFlightStore(file, 4096)) {
+            assertEquals(0, store.size());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MqttBinaryClientTest {
+    private MqttBroker broker;
+    private final List<MqttBinaryClient> clients = new ArrayList<>();
+
+    @BeforeEach
+    void startBroker() throws IOException {
+        broker = new MqttBroker(0);
+    }
+
+    @AfterEach
+    void stop() {
+        for (MqttBinaryClient client : clients)
+            client.disconnect();
+        broker.close();
+    }
+
+    private MqttBinaryClient connect(String id, int qos) throws IOException {
+        MqttBinaryClient client = new MqttBinaryClient(id, "127.0.0.1", broker.port());
+        client.setKeepAlive(60);
+        client.setQos(qos);
+        client.connect();
+        clients.add(client);
+        assertTrue(client.isConnected());
+        return client;
+    }
+
+    /**
+     * Builds the variable header and payload of a QoS 2 PUBLISH.
+     */
+    private static ByteBuffer qos2Publish(String topic, int packetId, String payload) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = ByteBuffer.allocate(4 + topicBytes.length + payloadBytes.length);
+        message.putShort((short) topicBytes.length).put(topicBytes).putShort((short) packetId).put(payloadBytes);
+        message.flip();
+        return message;
+    }
+
+    private static ByteBuffer packetId(int packetId) {
+        ByteBuffer message = ByteBuffer.allocate(2).putShort((short) packetId);
+        message.flip();
+        return message;
+    }
+
+    @Test
+    void outgoingQos2MessagesCompleteOnPubcomp() throws Exception {
+        MqttBinaryClient subscriber = connect("qos2-out-sub", 2);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        subscriber.subscribe("qos2/out", (topic, message) -> received.add(message));
+        MqttBinaryClient publisher = connect("qos2-out-pub", 2);
+
+        List<CompletableFuture<Void>> tokens = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            tokens.add(publisher.publishAsync("qos2/out", "m" + i, 2, false));
+        for (CompletableFuture<Void> token : tokens)
+            token.get(5, TimeUnit.SECONDS);
+        // PUBREC only moves a message to the PUBREL stage, the PUBCOMP frees its slot
+        assertEquals(0, publisher.getInflight());
+
+        for (int i = 0; i < 100; i++)
+            assertEquals("m" + i, received.poll(5, TimeUnit.SECONDS));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void incomingQos2MessagesAreDeliveredOnce() throws Exception {
+        MqttBinaryClient subscriber = connect("qos2-in-sub", 2);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        subscriber.subscribe("qos2/in/#", (topic, message) -> received.add(topic + " " + message));
+        MqttBinaryClient publisher = connect("qos2-in-pub", 2);
+
+        // one at a time, so that the broker reuses the packet identifier released by the previous PUBCOMP
+        for (int i = 0; i < 5; i++) {
+            publisher.publishAsync("qos2/in/" + i, "m" + i, 2, false).get(5, TimeUnit.SECONDS);
+            assertEquals("qos2/in/" + i + " m" + i, received.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void duplicateQos2PublishIsNotDeliveredAgain() throws Exception {
+        MqttBinaryClient client = connect("qos2-dup", 2);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        client.subscribe("qos2/dup", (topic, message) -> received.add(message));
+
+        assertEquals(1000, client.receive_publish(0x04, qos2Publish("qos2/dup", 1000, "first")));
+        // resent by the broker, with the DUP flag, because the PUBREC was lost
+        assertEquals(1000, client.receive_publish(0x0C, qos2Publish("qos2/dup", 1000, "first")));
+        assertEquals("first", received.poll(1, TimeUnit.SECONDS));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        // once released, the identifier belongs to a new message
+        client.receive_pubrel(packetId(1000));
+        client.receive_publish(0x04, qos2Publish("qos2/dup", 1000, "second"));
+        assertEquals("second", received.poll(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,356 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MqttBrokerTest {
+    private MqttBroker broker;
+    private final List<Peer> peers = new ArrayList<>();
+
+    @BeforeEach
+    void startBroker() throws IOException {
+        broker = new MqttBroker(0);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (Peer peer : peers)
+            peer.socket.close();
+        broker.close();
+    }
+
+    /**
+     * A packet read from the broker.
+     */
+    private static class Packet {
+        final int header;
+        final ByteBuffer body;
+
+        Packet(int header, byte[] body) {
+            this.header = header;
+            this.body = ByteBuffer.wrap(body);
+        }
+
+        int packetId() {
+            return Short.toUnsignedInt(body.getShort(body.position()));
+        }
+    }
+
+    /**
+     * A client speaking raw MQTT over a blocking socket.
+     */
+    private static class Peer {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+
+        Peer(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void send(int header, byte[] body) throws IOException {
+            ByteBuffer packet = ByteBuffer.allocate(5 + body.length);
+            packet.put((byte) header);
+            MqttEncoder.putRemainingLength(packet, body.length);
+            packet.put(body);
+            out.write(packet.array(), 0, packet.position());
+            out.flush();
+        }
+
+        Packet read() throws IOException {
+            int header = in.readUnsignedByte();
+            int length = 0;
+            for (int shift = 0;; shift += 7) {
+                int digit = in.readUnsignedByte();
+                length |= (digit & 0x7F) << shift;
+                if (digit < 0x80)
+                    break;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return new Packet(header, body);
+        }
+
+        /**
+         * Returns the next packet, or null if none arrives within the given time.
+         */
+        Packet poll(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+            try {
+                return read();
+            } catch (SocketTimeoutException e) {
+                return null;
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+        }
+
+        /**
+         * Returns true once the broker closed the connection.
+         */
+        boolean closedByBroker() throws IOException {
+            try {
+                while (true)
+                    read();
+            } catch (EOFException e) {
+                return true;
+            } catch (IOException e) {
+                // reset rather than closed
+                return !(e instanceof SocketTimeoutException);
+            }
+        }
+
+        void connect(String clientId) throws IOException {
+            connect(clientId, null, null, 0);
+            Packet connack = read();
+            assertEquals(0x20, connack.header);
+            assertArrayEquals(new byte[] { 0, 0 }, connack.body.array());
+        }
+
+        void connect(String clientId, String willTopic, String willMessage, int willQos) throws IOException {
+            ByteBuffer body = ByteBuffer.allocate(256);
+            string(body, "MQTT");
+            body.put((byte) 4);
+            body.put((byte) (0x02 | (willTopic != null ? 0x04 | willQos << 3 : 0)));
+            body.putShort((short) 60);
+            string(body, clientId);
+            if (willTopic != null) {
+                string(body, willTopic);
+                string(body, willMessage);
+            }
+            send(0x10, bytes(body));
+        }
+
+        void subscribe(int packetId, String filter, int qos) throws IOException {
+            ByteBuffer body = ByteBuffer.allocate(256);
+            body.putShort((short) packetId);
+            string(body, filter);
+            body.put((byte) qos);
+            send(0x82, bytes(body));
+            Packet suback = read();
+            assertEquals(0x90, suback.header);
+            assertEquals(packetId, suback.packetId());
+            assertEquals(qos, suback.body.get(2));
+        }
+
+        void publish(String topic, String payload, int qos, boolean retain, int packetId) throws IOException {
+            ByteBuffer body = ByteBuffer.allocate(256);
+            string(body, topic);
+            if (qos > 0)
+                body.putShort((short) packetId);
+            body.put(payload.getBytes(StandardCharsets.UTF_8));
+            send(MqttEncoder.PUBLISH | MqttEncoder.publishFlags(qos, retain, false), bytes(body));
+        }
+
+        void ack(int type, int packetId) throws IOException {
+            send(type, new byte[] { (byte) (packetId >> 8), (byte) packetId });
+        }
+    }
+
+    private static void string(ByteBuffer body, String value) {
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        body.putShort((short) raw.length).put(raw);
+    }
+
+    private static byte[] bytes(ByteBuffer body) {
+        byte[] raw = new byte[body.position()];
+        body.flip();
+        body.get(raw);
+        return raw;
+    }
+
+    private Peer peer() throws IOException {
+        Peer peer = new Peer(broker.port());
+        peers.add(peer);
+        return peer;
+    }
+
+    private Peer connected(String clientId) throws IOException {
+        Peer peer = peer();
+        peer.connect(clientId);
+        return peer;
+    }
+
+    /**
+     * Reads a PUBLISH and checks its topic and payload.
+     *
+     * @return the PUBLISH, positioned after its topic
+     */
+    private static Packet assertPublish(Peer peer, String topic, String payload) throws IOException {
+        Packet publish = peer.read();
+        assertEquals(MqttEncoder.PUBLISH, publish.header & 0xF0);
+        byte[] raw = new byte[publish.body.getShort()];
+        publish.body.get(raw);
+        assertEquals(topic, new String(raw, StandardCharsets.UTF_8));
+        int qos = (publish.header >> 1) & 3;
+        ByteBuffer payloadBytes = publish.body.duplicate();
+        if (qos > 0)
+            payloadBytes.position(payloadBytes.position() + 2);
+        assertEquals(payload, StandardCharsets.UTF_8.decode(payloadBytes).toString());
+        return publish;
+    }
+
+    @Test
+    void acceptsConnectAndRejectsOtherProtocolLevels() throws IOException {
+        connected("connect");
+
+        Peer old = peer();
+        ByteBuffer body = ByteBuffer.allocate(64);
+        string(body, "MQIsdp");
+        body.put((byte) 3).put((byte) 0x02).putShort((short) 60);
+        string(body, "old");
+        old.send(0x10, bytes(body));
+        Packet connack = old.read();
+        assertEquals(0x20, connack.header);
+        assertEquals(1, connack.body.get(1));
+        assertTrue(old.closedByBroker());
+    }
+
+    @Test
+    void routesToWildcardSubscriptions() throws IOException {
+        Peer singleLevel = connected("single");
+        singleLevel.subscribe(1, "sensors/+/temperature", 0);
+        Peer multiLevel = connected("multi");
+        multiLevel.subscribe(1, "sensors/#", 0);
+        Peer publisher = connected("publisher");
+
+        publisher.publish("sensors/dht22/humidity", "40", 0, false, 0);
+        publisher.publish("sensors/dht22/temperature", "21", 0, false, 0);
+        publisher.publish("other/dht22/temperature", "0", 0, false, 0);
+
+        assertPublish(multiLevel, "sensors/dht22/humidity", "40");
+        assertPublish(multiLevel, "sensors/dht22/temperature", "21");
+        assertPublish(singleLevel, "sensors/dht22/temperature", "21");
+        assertNull(singleLevel.poll(200));
+        assertNull(multiLevel.poll(200));
+    }
+
+    @Test
+    void deliversRetainedMessagesOnSubscribe() throws IOException {
+        Peer publisher = connected("publisher");
+        publisher.publish("status/a", "up", 0, true, 0);
+        publisher.publish("status/b", "down", 0, true, 0);
+        // an empty retained message clears the topic
+        publisher.publish("status/b", "", 0, true, 0);
+        publisher.publish("status/c", "live", 0, false, 0);
+        // answered once the publishes before it are processed
+        publisher.send(0xC0, new byte[0]);
+        assertEquals(0xD0, publisher.read().header);
+
+        Peer subscriber = connected("subscriber");
+        subscriber.subscribe(1, "status/+", 0);
+        Packet retained = assertPublish(subscriber, "status/a", "up");
+        assertEquals(1, retained.header & 0x01);
+        assertNull(subscriber.poll(200));
+
+        // forwarded to the existing subscriptions without the retain flag
+        publisher.publish("status/a", "restarting", 0, true, 0);
+        Packet live = assertPublish(subscriber, "status/a", "restarting");
+        assertEquals(0, live.header & 0x01);
+    }
+
+    @Test
+    void forwardsQos1AndQos2Messages() throws IOException {
+        Peer subscriber = connected("subscriber");
+        subscriber.subscribe(1, "qos/#", 2);
+        Peer downgraded = connected("downgraded");
+        downgraded.subscribe(1, "qos/#", 1);
+        Peer publisher = connected("publisher");
+
+        publisher.publish("qos/1", "one", 1, false, 10);
+        Packet puback = publisher.read();
+        assertEquals(MqttEncoder.PUBACK, (byte) puback.header);
+        assertEquals(10, puback.packetId());
+        Packet qos1 = assertPublish(subscriber, "qos/1", "one");
+        assertEquals(1, (qos1.header >> 1) & 3);
+        subscriber.ack(MqttEncoder.PUBACK, qos1.packetId());
+        assertEquals(1, (assertPublish(downgraded, "qos/1", "one").header >> 1) & 3);
+
+        publisher.publish("qos/2", "two", 2, false, 11);
+        // resent because the PUBREC was lost: acknowledged again, forwarded once
+        publisher.publish("qos/2", "two", 2, false, 11);
+        for (int i = 0; i < 2; i++) {
+            Packet pubrec = publisher.read();
+            assertEquals(MqttEncoder.PUBREC, (byte) pubrec.header);
+            assertEquals(11, pubrec.packetId());
+        }
+        publisher.ack(MqttEncoder.PUBREL, 11);
+        Packet pubcomp = publisher.read();
+        assertEquals(MqttEncoder.PUBCOMP, (byte) pubcomp.header);
+        assertEquals(11, pubcomp.packetId());
+
+        Packet qos2 = assertPublish(subscriber, "qos/2", "two");
+        assertEquals(2, (qos2.header >> 1) & 3);
+        subscriber.ack(MqttEncoder.PUBREC, qos2.packetId());
+        Packet pubrel = subscriber.read();
+        assertEquals(MqttEncoder.PUBREL, (byte) pubrel.header);
+        assertEquals(qos2.packetId(), pubrel.packetId());
+        subscriber.ack(MqttEncoder.PUBCOMP, qos2.packetId());
+        assertNull(subscriber.poll(200));
+        assertEquals(1, (assertPublish(downgraded, "qos/2", "two").header >> 1) & 3);
+    }
+
+    @Test
+    void publishesTheWillOnAbruptClose() throws IOException {
+        Peer subscriber = connected("subscriber");
+        subscriber.subscribe(1, "wills/#", 0);
+
+        Peer graceful = peer();
+        graceful.connect("graceful", "wills/graceful", "gone", 0);
+        assertEquals(0x20, graceful.read().header);
+        graceful.send(MqttEncoder.DISCONNECT, new byte[0]);
+        assertTrue(graceful.closedByBroker());
+
+        Peer abrupt = peer();
+        abrupt.connect("abrupt", "wills/abrupt", "lost", 0);
+        assertEquals(0x20, abrupt.read().header);
+        abrupt.socket.close();
+
+        assertPublish(subscriber, "wills/abrupt", "lost");
+        assertNull(subscriber.poll(200));
+    }
+
+    @Test
+    void closesOnlyTheConnectionSendingAMalformedPacket() throws IOException {
+        Peer bystander = connected("bystander");
+        bystander.subscribe(1, "ok/#", 0);
+
+        Peer beforeConnect = peer();
+        beforeConnect.publish("ok/a", "early", 0, false, 0);
+        assertTrue(beforeConnect.closedByBroker());
+
+        Peer wildcard = connected("wildcard");
+        wildcard.publish("ok/+", "invalid", 0, false, 0);
+        assertTrue(wildcard.closedByBroker());
+
+        Peer truncated = connected("truncated");
+        // a topic length beyond the end of the packet
+        truncated.send(0x30, new byte[] { 0, 50, 'o', 'k' });
+        assertTrue(truncated.closedByBroker());
+
+        Peer publisher = connected("publisher");
+        publisher.publish("ok/b", "still up", 0, false, 0);
+        assertPublish(bystander, "ok/b", "still up");
+        assertNull(bystander.poll(200));
+    }
+}
@@ -0,0 +1,85 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class MqttEncoderTest {
+    private static byte[] utf8(String data) {
+        ByteBuffer dst = ByteBuffer.allocate(4 * data.length());
+        MqttEncoder.putUtf8(dst, data);
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+
+    private static void assertUtf8(String data) {
+        byte[] expected = data.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, MqttEncoder.utf8Length(data), data);
+        assertArrayEquals(expected, utf8(data), data);
+    }
+
+    private static byte[] remainingLength(int length) {
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        MqttEncoder.putRemainingLength(dst, length);
+        assertEquals(MqttEncoder.remainingLengthSize(length), dst.position());
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        return bytes;
+    }
+
+    @Test
+    void encodesLikeStringGetBytes() {
+        assertUtf8("");
+        assertUtf8("sensors/dht22/temperature");
+        // 2 bytes: e acute, 3 bytes: euro sign and a CJK ideograph
+        assertUtf8("caf\u00e9 \u20ac \u6e29\u5ea6");
+        assertUtf8("\u007f\u0080\u07ff\u0800\uffff");
+        // supplementary characters, as surrogate pairs
+        assertUtf8("\ud83c\udf21\ufe0f/\ud83d\udca7");
+        assertUtf8("\ud800\udc00\udbff\udfff");
+    }
+
+    @Test
+    void replacesLoneSurrogatesLikeStringGetBytes() {
+        assertUtf8("\ud83c");
+        assertUtf8("\udf21");
+        assertUtf8("a\ud83cb");
+        assertUtf8("a\udf21\ud83c");
+        // a low surrogate before its high surrogate is not a pair
+        assertUtf8("\udf21\ud83c");
+        assertArrayEquals(bytes('a', '?', 'b'), utf8("a\ud83cb"));
+    }
+
+    @Test
+    void encodesTheRemainingLengthOnAsFewBytesAsPossible() {
+        assertArrayEquals(bytes(0x00), remainingLength(0));
+        assertArrayEquals(bytes(0x7F), remainingLength(127));
+        assertArrayEquals(bytes(0x80, 0x01), remainingLength(128));
+        assertArrayEquals(bytes(0xFF, 0x7F), remainingLength(16383));
+        assertArrayEquals(bytes(0x80, 0x80, 0x01), remainingLength(16384));
+        assertArrayEquals(bytes(0xFF, 0xFF, 0x7F), remainingLength(2097151));
+        assertArrayEquals(bytes(0x80, 0x80, 0x80, 0x01), remainingLength(2097152));
+        assertArrayEquals(bytes(0xFF, 0xFF, 0xFF, 0x7F), remainingLength(MqttEncoder.MAX_LENGTH));
+        assertThrows(IllegalArgumentException.class, () -> remainingLength(MqttEncoder.MAX_LENGTH + 1));
+    }
+
+    @Test
+    void rejectsStringsLongerThanTheLengthPrefix() {
+        char[] chars = new char[MqttEncoder.MAX_STRING_LEN];
+        Arrays.fill(chars, 'a');
+        assertEquals(MqttEncoder.MAX_STRING_LEN, MqttEncoder.stringLength(new String(chars)));
+        // fewer chars than the limit, but more bytes
+        chars[0] = '\u00e9';
+        assertThrows(IllegalArgumentException.class, () -> MqttEncoder.stringLength(new String(chars)));
+    }
+}
@@ -0,0 +1,197 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OfflineQueueTest {
+    @TempDir
+    Path dir;
+
+    private final ExecutorService publishers = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        publishers.shutdownNow();
+    }
+
+    private static OutboundPacket.Publish publish(String topic, String payload, int qos) {
+        return new OutboundPacket.Publish(topic, ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)), qos,
+                qos == 1, false, new CompletableFuture<>());
+    }
+
+    private static String payload(OutboundPacket.Publish packet) {
+        if (packet.payload == null)
+            return packet.message;
+        return StandardCharsets.UTF_8.decode(packet.payload.duplicate()).toString();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static List<OutboundPacket.Publish> drain(OfflineQueue queue) {
+        List<OutboundPacket.Publish> packets = new ArrayList<>();
+        OutboundPacket.Publish packet;
+        while ((packet = queue.poll()) != null) {
+            packets.add(packet);
+            queue.sent();
+        }
+        return packets;
+    }
+
+    @Test
+    void spillsAndReadsBackInOrder() throws Exception {
+        Path file = dir.resolve("offline.spill");
+        OfflineQueue queue = new OfflineQueue(2, 1 << 20, OverflowPolicy.SPILL_TO_DISK, file);
+        // a topic longer than a signed short
+        String longTopic = repeat('t', 40000);
+        List<OutboundPacket.Publish> offered = Arrays.asList(publish("a", "one", 0), publish("b", "two", 1),
+                publish(longTopic, "three", 2), publish("d", "", 1), publish("e", "five", 0));
+        for (OutboundPacket.Publish packet : offered)
+            assertTrue(queue.offer(packet));
+        assertEquals(5, queue.size());
+        assertTrue(Files.size(file) > 40000);
+
+        List<OutboundPacket.Publish> polled = drain(queue);
+        assertEquals(5, polled.size());
+        for (int i = 0; i < offered.size(); i++) {
+            assertEquals(offered.get(i).topic, polled.get(i).topic);
+            assertEquals(payload(offered.get(i)), payload(polled.get(i)));
+            assertEquals(offered.get(i).qos, polled.get(i).qos);
+            assertEquals(offered.get(i).retain, polled.get(i).retain);
+            assertTrue(offered.get(i).token == polled.get(i).token);
+        }
+        assertTrue(queue.isEmpty());
+        // truncated once every spilled message was read back
+        assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    void refillsTheReadBufferAcrossLargeSpills() throws Exception {
+        Path file = dir.resolve("offline.spill");
+        OfflineQueue queue = new OfflineQueue(1, 1 << 20, OverflowPolicy.SPILL_TO_DISK, file);
+        List<String> payloads = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            payloads.add(i + repeat('x', 2000));
+        // larger than the 64 KiB read buffer
+        payloads.add(50, repeat('y', 100000));
+        for (String payload : payloads)
+            assertTrue(queue.offer(publish("sensors/" + payloads.size(), payload, 1)));
+
+        List<OutboundPacket.Publish> polled = drain(queue);
+        assertEquals(payloads.size(), polled.size());
+        for (int i = 0; i < payloads.size(); i++)
+            assertEquals(payloads.get(i), payload(polled.get(i)), "message " + i);
+
+        // the file is reused from its start afterwards
+        assertTrue(queue.offer(publish("a", "1", 0)));
+        assertTrue(queue.offer(publish("b", "2", 0)));
+        assertEquals(Arrays.asList("1", "2"), Arrays.asList(payload(queue.poll()), payload(queue.poll())));
+    }
+
+    @Test
+    void dropOldestFailsTheDroppedToken() throws Exception {
+        OfflineQueue queue = new OfflineQueue(2, 1 << 20, OverflowPolicy.DROP_OLDEST, null);
+        OutboundPacket.Publish oldest = publish("a", "1", 1);
+        queue.offer(oldest);
+        queue.offer(publish("a", "2", 1));
+        assertTrue(queue.offer(publish("a", "3", 1)));
+        assertTrue(oldest.token.isCompletedExceptionally());
+        assertEquals(Arrays.asList("2", "3"), Arrays.asList(payload(queue.poll()), payload(queue.poll())));
+    }
+
+    @Test
+    void dropNewestRejectsTheNewMessage() throws Exception {
+        OfflineQueue queue = new OfflineQueue(1, 1 << 20, OverflowPolicy.DROP_NEWEST, null);
+        OutboundPacket.Publish first = publish("a", "1", 1);
+        assertTrue(queue.offer(first));
+        assertFalse(queue.offer(publish("a", "2", 1)));
+        assertFalse(first.token.isDone());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void blockedPublisherWakesUpWhenRoomIsMade() throws Exception {
+        OfflineQueue queue = new OfflineQueue(1, 1 << 20, OverflowPolicy.BLOCK, null);
+        queue.offer(publish("a", "1", 1));
+        Future<Boolean> blocked = publishers.submit(() -> queue.offer(publish("a", "2", 1)));
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+        assertEquals("1", payload(queue.poll()));
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        assertEquals("2", payload(queue.poll()));
+    }
+
+    @Test
+    void closeFailsTheBufferAndReleasesBlockedPublishers() throws Exception {
+        Path file = dir.resolve("offline.spill");
+        OfflineQueue blocking = new OfflineQueue(1, 1 << 20, OverflowPolicy.BLOCK, null);
+        OutboundPacket.Publish buffered = publish("a", "1", 1);
+        blocking.offer(buffered);
+        Future<Boolean> blocked = publishers.submit(() -> blocking.offer(publish("a", "2", 1)));
+        Thread.sleep(100);
+        IOException cause = new IOException("Disconnected from broker");
+        blocking.close(cause);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> blocked.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() == cause);
+        assertTrue(buffered.token.isCompletedExceptionally());
+        assertNull(blocking.poll());
+        assertThrows(IOException.class, () -> blocking.offer(publish("a", "3", 1)));
+        blocking.reopen();
+        assertTrue(blocking.offer(publish("a", "4", 1)));
+
+        OfflineQueue spilling = new OfflineQueue(1, 1 << 20, OverflowPolicy.SPILL_TO_DISK, file);
+        spilling.offer(publish("a", "1", 1));
+        OutboundPacket.Publish spilled = publish("a", "2", 1);
+        spilling.offer(spilled);
+        spilling.close(cause);
+        assertTrue(spilled.token.isCompletedExceptionally());
+        assertEquals(0, spilling.size());
+        assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    void blockedPublisherGivesUpAfterTheTimeout() throws Exception {
+        OfflineQueue queue = new OfflineQueue(1, 1 << 20, OverflowPolicy.BLOCK, null, 100);
+        queue.offer(publish("a", "1", 1));
+        long start = System.nanoTime();
+        assertThrows(IOException.class, () -> queue.offer(publish("a", "2", 1)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void interruptedPublisherGivesUp() throws Exception {
+        OfflineQueue queue = new OfflineQueue(1, 1 << 20, OverflowPolicy.BLOCK, null);
+        queue.offer(publish("a", "1", 1));
+        Future<Boolean> blocked = publishers.submit(() -> queue.offer(publish("a", "2", 1)));
+        Thread.sleep(100);
+        blocked.cancel(true);
+        // the waiting thread is released, so the queue can be polled
+        assertEquals("1", payload(queue.poll()));
+        assertEquals(0, queue.size());
+    }
+}
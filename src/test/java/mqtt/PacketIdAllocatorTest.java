@@ -0,0 +1,72 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+class PacketIdAllocatorTest {
+
+    @Test
+    void handsOutEveryIdentifierOnceThenZero() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < PacketIdSet.MAX_ID; i++) {
+            int packetId = packetIds.acquire();
+            assertTrue(packetId >= 1 && packetId <= PacketIdSet.MAX_ID, "out of range: " + packetId);
+            assertTrue(seen.add(packetId), "given twice: " + packetId);
+        }
+        assertEquals(0, packetIds.acquire());
+        packetIds.release(4242);
+        assertEquals(4242, packetIds.acquire());
+    }
+
+    @Test
+    void clearKeepsZeroAllocated() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        packetIds.acquire();
+        packetIds.clear();
+        assertFalse(packetIds.contains(1));
+        assertEquals(1, packetIds.acquire());
+    }
+
+    @Test
+    void addReservesAGivenIdentifier() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        assertTrue(packetIds.add(1));
+        assertFalse(packetIds.add(1));
+        assertEquals(2, packetIds.acquire());
+        assertThrows(IllegalArgumentException.class, () -> packetIds.add(0));
+        assertThrows(IllegalArgumentException.class, () -> packetIds.add(PacketIdSet.MAX_ID + 1));
+    }
+
+    @Test
+    void concurrentThreadsNeverShareAnIdentifier() throws InterruptedException {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        Set<Integer> held = ConcurrentHashMap.newKeySet();
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        boolean[] duplicate = new boolean[1];
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    int packetId = packetIds.acquire();
+                    if (!held.add(packetId))
+                        duplicate[0] = true;
+                    held.remove(packetId);
+                    packetIds.release(packetId);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertFalse(duplicate[0]);
+    }
+}
@@ -0,0 +1,83 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class QuantileSketchTest {
+    private static final int N = 100000;
+    private static final double[] FRACTIONS = { 0.01, 0.25, 0.5, 0.75, 0.95, 0.99 };
+
+    /**
+     * Returns 1..n in a random order.
+     */
+    private static List<Double> shuffled(int n, long seed) {
+        List<Double> values = new ArrayList<>();
+        for (int i = 1; i <= n; i++)
+            values.add((double) i);
+        Collections.shuffle(values, new Random(seed));
+        return values;
+    }
+
+    private static void assertRankError(QuantileSketch sketch, int n, double tolerance) {
+        double[] quantiles = sketch.quantiles(FRACTIONS);
+        for (int q = 0; q < FRACTIONS.length; q++) {
+            // the rank of value v among 1..n is v
+            double error = Math.abs(quantiles[q] / n - FRACTIONS[q]);
+            assertTrue(error <= tolerance, "p" + FRACTIONS[q] + " is " + quantiles[q]);
+        }
+    }
+
+    @Test
+    void emptySketchHasNoQuantiles() {
+        QuantileSketch sketch = new QuantileSketch(128);
+        assertEquals(0, sketch.count());
+        assertTrue(Double.isNaN(sketch.quantiles(0.5)[0]));
+    }
+
+    @Test
+    void isExactBeforeTheFirstCompaction() {
+        QuantileSketch sketch = new QuantileSketch(128);
+        for (double value : shuffled(100, 1))
+            sketch.update(value);
+        assertArrayEquals(new double[] { 1, 50, 99, 100 }, sketch.quantiles(0, 0.5, 0.99, 1), 0.0);
+    }
+
+    @Test
+    void boundsTheRankError() {
+        QuantileSketch sketch = new QuantileSketch(128);
+        for (double value : shuffled(N, 2))
+            sketch.update(value);
+        assertEquals(N, sketch.count());
+        assertRankError(sketch, N, 0.03);
+    }
+
+    @Test
+    void mergedSketchesAreAsAccurate() {
+        List<Double> values = shuffled(N, 3);
+        QuantileSketch merged = new QuantileSketch(128);
+        for (int part = 0; part < 10; part++) {
+            QuantileSketch sketch = new QuantileSketch(128);
+            for (double value : values.subList(part * N / 10, (part + 1) * N / 10))
+                sketch.update(value);
+            long count = sketch.count();
+            merged.merge(sketch);
+            assertEquals(count, sketch.count());
+        }
+        assertEquals(N, merged.count());
+        assertRankError(merged, N, 0.03);
+    }
+
+    @Test
+    void rejectsATooSmallK() {
+        assertThrows(IllegalArgumentException.class, () -> new QuantileSketch(1));
+    }
+}
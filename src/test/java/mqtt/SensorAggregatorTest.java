@@ -0,0 +1,50 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class SensorAggregatorTest {
+    private static final long MINUTE = 60000;
+
+    private final BlockingQueue<StreamStats.Snapshot> results = new LinkedBlockingQueue<>();
+    // an early result after every reading, with the open window
+    private final SensorAggregator aggregator = new SensorAggregator(MINUTE, MINUTE, 1,
+            (sensor, metric, window, early) -> results.add(window));
+
+    /**
+     * Returns the start of the open window, at least a second before it ends so that it stays open during the test.
+     */
+    private static long openStart() throws InterruptedException {
+        long left = MINUTE - System.currentTimeMillis() % MINUTE;
+        if (left < 1000)
+            Thread.sleep(left);
+        return System.currentTimeMillis() / MINUTE * MINUTE;
+    }
+
+    @Test
+    void recordsAReadingLateByLessThanASlideInTheOpenWindow() throws InterruptedException {
+        aggregator.record("dht22", "temperature", 21.5, openStart() - MINUTE / 2);
+        StreamStats.Snapshot window = results.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, window.count);
+        assertEquals(21.5, window.sum, 0.0);
+        assertEquals(0, aggregator.dropped());
+    }
+
+    @Test
+    void dropsAndCountsOlderReadings() throws InterruptedException {
+        aggregator.record("dht22", "temperature", 21.5, openStart() - 3 * MINUTE / 2);
+        aggregator.record("dht22", "temperature", 22.5, System.currentTimeMillis() + MINUTE);
+        StreamStats.Snapshot window = results.poll(5, TimeUnit.SECONDS);
+        // only the reading from the future, recorded as made now
+        assertEquals(1, window.count);
+        assertEquals(22.5, window.sum, 0.0);
+        assertEquals(1, aggregator.dropped());
+        assertTrue(results.isEmpty());
+    }
+}
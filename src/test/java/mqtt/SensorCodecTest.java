@@ -0,0 +1,80 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class SensorCodecTest {
+
+    @Test
+    void roundTripsABatchOfReadings() {
+        SensorCodec.Batch batch = new SensorCodec.Batch();
+        double[] values = { 23.456789012345, -0.0, Double.NaN, Double.MAX_VALUE };
+        for (int i = 0; i < values.length; i++)
+            batch.add(i == 2 ? "capteur-\u00e9" : "dht22-" + i, 1700000000000L + i, values[i]);
+        List<String> decoded = new ArrayList<>();
+        int count = SensorCodec.decodeReadings(batch.toByteArray(),
+                (sensor, timestamp, value) -> decoded.add(sensor + " " + timestamp + " " + value));
+        assertEquals(values.length, count);
+        assertEquals(Arrays.asList("dht22-0 1700000000000 23.456789012345", "dht22-1 1700000000001 -0.0",
+                "capteur-\u00e9 1700000000002 NaN", "dht22-3 1700000000003 " + Double.MAX_VALUE), decoded);
+    }
+
+    @Test
+    void roundTripsASummary() {
+        SensorCodec.Summary summary = SensorCodec.decodeSummary(SensorCodec
+                .encodeSummary(new SensorCodec.Summary("dht22", 1700000000000L, 60, 21.5, 21.0, 24.25, 25.125)));
+        assertEquals("dht22", summary.sensor);
+        assertEquals(1700000000000L, summary.timestamp);
+        assertEquals(60, summary.count);
+        assertEquals(21.5, summary.mean, 0.0);
+        assertEquals(21.0, summary.p50, 0.0);
+        assertEquals(24.25, summary.p95, 0.0);
+        assertEquals(25.125, summary.p99, 0.0);
+    }
+
+    @Test
+    void rejectsTruncatedPayloads() {
+        byte[] readings = new SensorCodec.Batch().add("a", 1, 1).add("b", 2, 2).toByteArray();
+        byte[] summary = SensorCodec.encodeSummary(new SensorCodec.Summary("dht22", 1, 1, 1, 1, 1, 1));
+        // every cut, but after a whole reading, leaves a partial one
+        for (int length = 2; length < readings.length; length++) {
+            if (length == 1 + 19)
+                continue;
+            byte[] truncated = Arrays.copyOf(readings, length);
+            assertThrows(IllegalArgumentException.class,
+                    () -> SensorCodec.decodeReadings(truncated, (sensor, timestamp, value) -> {
+                    }), "cut at " + length);
+        }
+        for (int length = 1; length < summary.length; length++) {
+            byte[] truncated = Arrays.copyOf(summary, length);
+            assertThrows(IllegalArgumentException.class, () -> SensorCodec.decodeSummary(truncated),
+                    "cut at " + length);
+        }
+    }
+
+    @Test
+    void rejectsTheWrongTypeOrAnEmptyPayload() {
+        byte[] readings = SensorCodec.encodeReading("dht22", 1, 1);
+        assertThrows(IllegalArgumentException.class, () -> SensorCodec.decodeSummary(readings));
+        assertThrows(IllegalArgumentException.class, () -> SensorCodec.decodeSummary(new byte[0]));
+        assertThrows(IllegalArgumentException.class,
+                () -> SensorCodec.decodeReadings("21.5".getBytes(), (sensor, timestamp, value) -> {
+                }));
+    }
+
+    @Test
+    void rejectsASensorIdLongerThanTheLengthPrefix() {
+        char[] id = new char[65536];
+        Arrays.fill(id, 'x');
+        String sensor = new String(id);
+        assertThrows(IllegalArgumentException.class, () -> SensorCodec.encodeReading(sensor, 1, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> SensorCodec.encodeSummary(new SensorCodec.Summary(sensor, 1, 1, 1, 1, 1, 1)));
+    }
+}
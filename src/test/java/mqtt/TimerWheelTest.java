@@ -0,0 +1,68 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    // 4 buckets of 10 ms: one revolution every 40 ms
+    private static final TimerWheel wheel = new TimerWheel(10, 4, "test-timer");
+
+    @Test
+    void runsTasksNoEarlierThanTheirDelay() throws InterruptedException {
+        long[] delays = { 0, 5, 30, 100, 250 };
+        CountDownLatch done = new CountDownLatch(delays.length);
+        AtomicBoolean early = new AtomicBoolean();
+        for (long delay : delays) {
+            long start = System.nanoTime();
+            wheel.schedule(() -> {
+                if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay))
+                    early.set(true);
+                done.countDown();
+            }, delay);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(early.get());
+    }
+
+    @Test
+    void waitsSeveralRevolutionsForALongDelay() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong elapsed = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            elapsed.set(System.nanoTime() - start);
+            done.countDown();
+        }, 130);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed.get() >= TimeUnit.MILLISECONDS.toNanos(130));
+        assertTrue(elapsed.get() < TimeUnit.MILLISECONDS.toNanos(2000), "ran after " + elapsed.get() + " ns");
+    }
+
+    @Test
+    void cancelledTasksNeverRun() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        TimerWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), 50);
+        timeout.cancel();
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 150);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    void keepsTickingAfterAFailingTask() throws InterruptedException {
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 0);
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(done::countDown, 20);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
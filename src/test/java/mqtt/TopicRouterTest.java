@@ -0,0 +1,82 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+class TopicRouterTest {
+    private static final List<String> FILTERS = Arrays.asList("sport/tennis/player1", "sport/tennis/+",
+            "sport/+/player1", "sport/#", "#", "+", "+/+", "/+", "+/tennis/#", "$SYS/#", "$SYS/+/clients");
+
+    private static Set<String> match(TopicRouter<String> router, String topic) {
+        Set<String> matched = new TreeSet<>();
+        router.match(topic, matched::add);
+        return matched;
+    }
+
+    private static TopicRouter<String> router() {
+        TopicRouter<String> router = new TopicRouter<>();
+        for (String filter : FILTERS)
+            router.add(filter, filter);
+        return router;
+    }
+
+    @Test
+    void matchesWildcards() {
+        TopicRouter<String> router = router();
+        assertEquals(new TreeSet<>(Arrays.asList("sport/tennis/player1", "sport/tennis/+", "sport/+/player1",
+                "sport/#", "#", "+/tennis/#")), match(router, "sport/tennis/player1"));
+        // # also matches the parent level
+        assertEquals(new TreeSet<>(Arrays.asList("sport/#", "#", "+")), match(router, "sport"));
+        assertEquals(new TreeSet<>(Arrays.asList("sport/#", "#", "+/+")), match(router, "sport/"));
+        assertEquals(new TreeSet<>(Arrays.asList("#", "+/+", "/+")), match(router, "/finance"));
+    }
+
+    @Test
+    void keepsDollarTopicsAwayFromLeadingWildcards() {
+        TopicRouter<String> router = router();
+        assertEquals(new TreeSet<>(Arrays.asList("$SYS/#")), match(router, "$SYS/broker"));
+        assertEquals(new TreeSet<>(Arrays.asList("$SYS/#", "$SYS/+/clients")), match(router, "$SYS/broker/clients"));
+    }
+
+    @Test
+    void agreesWithMatches() {
+        TopicRouter<String> router = router();
+        for (String topic : Arrays.asList("sport", "sport/", "sport/tennis", "sport/tennis/player1",
+                "sport/tennis/player1/ranking", "/finance", "/", "a/tennis/b/c", "$SYS", "$SYS/broker/clients")) {
+            Set<String> expected = new TreeSet<>();
+            for (String filter : FILTERS) {
+                if (TopicRouter.matches(filter, topic))
+                    expected.add(filter);
+            }
+            assertEquals(expected, match(router, topic), topic);
+        }
+    }
+
+    @Test
+    void removesHandlers() {
+        TopicRouter<String> router = new TopicRouter<>();
+        router.add("a/+", "first");
+        router.add("a/+", "second");
+        router.add("a/#", "third");
+        router.remove("a/+", "first");
+        assertEquals(new TreeSet<>(Arrays.asList("second", "third")), match(router, "a/b"));
+        router.remove("a/+");
+        assertEquals(new TreeSet<>(Arrays.asList("third")), match(router, "a/b"));
+        assertEquals(0, router.match("b", handler -> {
+        }));
+    }
+
+    @Test
+    void rejectsInvalidFilters() {
+        TopicRouter<String> router = new TopicRouter<>();
+        for (String filter : Arrays.asList("", "a/#/b", "a/b#", "a+/b", "sport+"))
+            assertThrows(IllegalArgumentException.class, () -> router.add(filter, filter), filter);
+    }
+}
@@ -0,0 +1,77 @@
+package mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class WindowedStatsTest {
+
+    @Test
+    void closesTumblingWindows() {
+        WindowedStats stats = new WindowedStats(1000, 1000);
+        stats.record(1, 100);
+        stats.record(3, 900);
+        stats.record(5, 1100);
+        StreamStats.Snapshot first = stats.close(1000);
+        assertEquals(2, first.count);
+        assertEquals(2.0, first.mean(), 0.0);
+        assertEquals(1.0, first.min, 0.0);
+        assertEquals(3.0, first.max, 0.0);
+        assertNull(stats.close(1500));
+        StreamStats.Snapshot second = stats.close(2000);
+        assertEquals(1, second.count);
+        assertEquals(5.0, second.mean(), 0.0);
+    }
+
+    @Test
+    void closesSlidingWindows() {
+        WindowedStats stats = new WindowedStats(3000, 1000);
+        for (int i = 0; i < 4; i++)
+            stats.record(i + 1, i * 1000 + 500);
+        StreamStats.Snapshot first = stats.close(3000);
+        assertEquals(3, first.count);
+        assertEquals(6.0, first.sum, 0.0);
+        StreamStats.Snapshot second = stats.close(4000);
+        assertEquals(3, second.count);
+        assertEquals(9.0, second.sum, 0.0);
+    }
+
+    @Test
+    void readsTheOpenWindow() {
+        WindowedStats stats = new WindowedStats(2000, 1000);
+        stats.record(1, 500);
+        stats.record(2, 1200);
+        StreamStats.Snapshot open = stats.current(1300);
+        assertEquals(2, open.count);
+        assertEquals(3.0, open.sum, 0.0);
+    }
+
+    @Test
+    void countsUnreportedReadingsAndDropsStaleOnes() {
+        WindowedStats stats = new WindowedStats(1000, 1000);
+        assertEquals(1, stats.record(1, 5000));
+        assertEquals(2, stats.record(1, 5100));
+        // its bucket of the ring of two already holds a later slide
+        assertEquals(-1, stats.record(1, 3000));
+        stats.close(6000);
+        assertEquals(1, stats.record(1, 6100));
+    }
+
+    @Test
+    void sketchesTheQuantilesOfAWindow() {
+        WindowedStats stats = new WindowedStats(2000, 1000);
+        for (int i = 1; i <= 1000; i++)
+            stats.record(i, i % 2 == 0 ? 100 : 1100);
+        double[] quantiles = stats.close(2000).quantiles(0.5, 0.99);
+        assertEquals(500, quantiles[0], 30);
+        assertEquals(990, quantiles[1], 30);
+    }
+
+    @Test
+    void rejectsAWindowThatIsNotAMultipleOfTheSlide() {
+        assertThrows(IllegalArgumentException.class, () -> new WindowedStats(1500, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new WindowedStats(1000, 0));
+    }
+}